@@ -0,0 +1,118 @@
+package com.play4jpa.jpa.db;
+
+import com.google.common.collect.MapMaker;
+import com.play4jpa.jpa.query.QueryCache;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+import javax.persistence.EntityManager;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Entity classes written in a transaction not started by {@link Db} (e.g. by <b>JPA.withTransaction</b> or
+ * <b>@Transactional</b>), invalidated in the {@link QueryCache} once the transaction commits.
+ * <p/>
+ * Registered as synchronization of the Hibernate transaction, so the invalidation happens whoever commits it and is
+ * dropped on rollback.
+ *
+ * @author agent
+ */
+final class CommitInvalidation implements Synchronization {
+
+    /**
+     * Pending invalidations per transaction. Transactions are weak keys compared by identity, Hibernate creates a new
+     * one after each commit or rollback.
+     */
+    private static final ConcurrentMap<Transaction, CommitInvalidation> pending = new MapMaker().weakKeys().makeMap();
+
+    /**
+     * Entity classes written in the transaction
+     */
+    private final Set<Class<?>> entityClasses = Collections.synchronizedSet(new LinkedHashSet<Class<?>>());
+
+    private CommitInvalidation() {
+    }
+
+    /**
+     * Register an entity class to invalidate when the active transaction of the given entity manager commits.
+     *
+     * @param em          Entity manager
+     * @param entityClass Written entity class
+     * @return True if registered, false if no transaction is active
+     */
+    static boolean register(EntityManager em, Class<?> entityClass) {
+        Transaction transaction = em.unwrap(Session.class).getTransaction();
+        if (!transaction.isActive()) {
+            return false;
+        }
+
+        CommitInvalidation invalidation = pending.get(transaction);
+        if (invalidation == null) {
+            invalidation = new CommitInvalidation();
+            CommitInvalidation existing = pending.putIfAbsent(transaction, invalidation);
+            if (existing != null) {
+                invalidation = existing;
+            } else {
+                transaction.registerSynchronization(invalidation);
+            }
+        }
+        invalidation.entityClasses.add(entityClass);
+        return true;
+    }
+
+    /**
+     * Check whether entities the given classes depend on were written in the active transaction of the given entity
+     * manager and not committed yet.
+     *
+     * @param em            Entity manager
+     * @param entityClasses Entity classes to check
+     * @return True if an invalidation of one of the classes is pending
+     */
+    static boolean isPending(EntityManager em, Collection<Class<?>> entityClasses) {
+        if (pending.isEmpty()) {
+            return false;
+        }
+
+        CommitInvalidation invalidation = pending.get(em.unwrap(Session.class).getTransaction());
+        if (invalidation == null) {
+            return false;
+        }
+        synchronized (invalidation.entityClasses) {
+            for (Class<?> written : invalidation.entityClasses) {
+                if (QueryCache.dependsOn(entityClasses, written)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void beforeCompletion() {
+        // Nothing to do before completion
+    }
+
+    @Override
+    public void afterCompletion(int status) {
+        pending.values().remove(this);
+        if (status != Status.STATUS_COMMITTED) {
+            return;
+        }
+
+        List<Class<?>> written;
+        synchronized (entityClasses) {
+            written = new ArrayList<>(entityClasses);
+        }
+        for (Class<?> entityClass : written) {
+            QueryCache.invalidateShared(entityClass);
+        }
+    }
+}
@@ -1,7 +1,12 @@
 package com.play4jpa.jpa.db;
 
-import javax.persistence.EntityManager;
+import com.play4jpa.jpa.query.QueryCache;
+
+import play.libs.F;
+import scala.concurrent.ExecutionContext;
+
 import javax.persistence.EntityTransaction;
+import java.util.Collection;
 
 /**
  * Helper functions to facilitate working with database transactions for Hibernate.
@@ -12,20 +17,15 @@ import javax.persistence.EntityTransaction;
 public class Db extends play.db.jpa.JPA {
 
     /**
-     * Logger instance
+     * Configuration key for the number of entities written before a bulk operation flushes.
      */
-    private static final play.Logger.ALogger log = play.Logger.of(Db.class);
+    public static final String BATCH_SIZE_KEY = "play4jpa.batchSize";
 
     /**
-     * Flag to indicate whether a commit operation is needed.
+     * Default number of entities written before a bulk operation flushes.
      */
-    private static final ThreadLocal<Boolean> needsCommit = new ThreadLocal<>();
+    public static final int DEFAULT_BATCH_SIZE = 50;
 
-    /**
-     * Run a block of code in a JPA transaction.
-     *
-     * @param block Block of code to execute.
-     */
     /**
      * Run a block of code in a JPA transaction and return a value.
      *
@@ -64,52 +64,171 @@ public class Db extends play.db.jpa.JPA {
      * @throws java.lang.Throwable by block.invoke()
      */
     public static <T> T withTx(String name, boolean readOnly, play.libs.F.Function0<T> block) throws Throwable {
-        EntityManager em = null;
-        EntityTransaction tx = null;
+        TxState state = TxState.open(name, readOnly, false);
+        TxState previous = state.bind();
         try {
-            em = play.db.jpa.JPA.em(name);
-            play.db.jpa.JPA.bindForCurrentThread(em);
-            bindNeedsCommitToThread();
+            T result = block.apply();
+            state.complete();
+            return result;
+        } catch (Throwable t) {
+            state.abort();
+            throw t;
+        } finally {
+            TxState.restore(previous);
+            state.close();
+        }
+    }
+
+    /**
+     * Run a blocking block of code in a JPA transaction on the {@link JdbcExecutor}.
+     *
+     * @param block Block to execute
+     * @param <T>   Type of return value
+     * @return Promise of the return value of block, redeemed after the transaction was committed
+     */
+    public static <T> F.Promise<T> withTxAsync(F.Function0<T> block) {
+        return withTxAsync("default", false, block);
+    }
 
-            if (!readOnly) {
-                tx = em.getTransaction();
-                tx.begin();
+    /**
+     * Run a blocking block of code in a JPA transaction for a specific persistence unit on the {@link JdbcExecutor}.
+     *
+     * @param name     Persistence unit name
+     * @param readOnly If true, transaction is read-only
+     * @param block    Block to execute
+     * @param <T>      Type of return value
+     * @return Promise of the return value of block, redeemed after the transaction was committed
+     */
+    public static <T> F.Promise<T> withTxAsync(final String name, final boolean readOnly, final F.Function0<T> block) {
+        return F.Promise.promise(new F.Function0<T>() {
+            @Override
+            public T apply() throws Throwable {
+                return withTx(name, readOnly, block);
             }
+        }, JdbcExecutor.getInstance().getExecutionContext());
+    }
 
-            T result = block.apply();
+    /**
+     * Run a block of code returning a promise in a JPA transaction which is kept open until the promise is redeemed.
+     * <p/>
+     * The block itself runs on the {@link JdbcExecutor}. Callbacks of the promise working with the entity manager must
+     * be executed in {@link #txExecutionContext()} (obtained inside the block), which binds the transaction to the
+     * executing thread. The transaction is committed (if needed) when the promise is redeemed and rolled back when it
+     * fails.
+     *
+     * @param name     Persistence unit name
+     * @param readOnly If true, transaction is read-only
+     * @param block    Block to execute
+     * @param <T>      Type of promised value
+     * @return Promise of the promised value of block, redeemed after the transaction was committed
+     */
+    public static <T> F.Promise<T> withTxPromise(final String name, final boolean readOnly,
+                                                 final F.Function0<F.Promise<T>> block) {
+        final ExecutionContext jdbc = JdbcExecutor.getInstance().getExecutionContext();
+        return F.Promise.promise(new F.Function0<TxState>() {
+            @Override
+            public TxState apply() throws Throwable {
+                return TxState.open(name, readOnly, true);
+            }
+        }, jdbc).flatMap(new F.Function<TxState, F.Promise<T>>() {
+            @Override
+            public F.Promise<T> apply(TxState state) throws Throwable {
+                F.Promise<T> result;
+                TxState previous = state.bind();
+                try {
+                    result = block.apply();
+                } catch (Throwable t) {
+                    state.abort();
+                    state.close();
+                    throw t;
+                } finally {
+                    TxState.restore(previous);
+                }
+                return completeWhenRedeemed(state, result, jdbc);
+            }
+        }, jdbc);
+    }
+
+    /**
+     * Complete a transaction when a promise is redeemed (commit if needed) or fails (rollback).
+     *
+     * @param state  Transaction
+     * @param result Promise to wait for
+     * @param jdbc   Execution context to complete the transaction in
+     * @param <T>    Type of promised value
+     * @return Promise of the same value, redeemed after the transaction was completed
+     */
+    private static <T> F.Promise<T> completeWhenRedeemed(final TxState state, F.Promise<T> result,
+                                                         ExecutionContext jdbc) {
+        final scala.concurrent.Promise<T> completed = scala.concurrent.Promise$.MODULE$.apply();
+        result.onRedeem(new F.Callback<T>() {
+            @Override
+            public void invoke(T value) throws Throwable {
+                Throwable failure = null;
+                TxState previous = state.bind();
+                try {
+                    state.complete();
+                } catch (Throwable t) {
+                    state.abort();
+                    failure = t;
+                } finally {
+                    TxState.restore(previous);
+                    state.close();
+                }
 
-            if (tx != null && tx.isActive()) {
-                if (needsCommit() && !tx.getRollbackOnly()) {
-                    tx.commit();
+                // Redeem only after the entity manager was closed
+                if (failure != null) {
+                    completed.failure(failure);
                 } else {
-                    tx.rollback();
+                    completed.success(value);
                 }
             }
-            return result;
-        } catch (Throwable t) {
-            if (tx != null && tx.isActive()) {
+        }, jdbc);
+        result.onFailure(new F.Callback<Throwable>() {
+            @Override
+            public void invoke(Throwable failure) throws Throwable {
+                TxState previous = state.bind();
                 try {
-                    tx.rollback();
-                } catch (Throwable e) {
-                    // Ignore errors on rollback
-                    log.error("Error on rollback!", e);
+                    state.abort();
+                } finally {
+                    TxState.restore(previous);
+                    state.close();
+                    completed.failure(failure);
                 }
             }
-            throw t;
-        } finally {
-            bindNeedsCommitToThread();
-            play.db.jpa.JPA.bindForCurrentThread(null);
-            if (em != null) {
-                em.close();
-            }
+        }, jdbc);
+        return F.Promise.wrap(completed.future());
+    }
+
+    /**
+     * Get an execution context running on the {@link JdbcExecutor} with the transaction of the current thread bound
+     * to the executing thread.
+     * <p/>
+     * Only transactions of {@link #withTxPromise} can be carried to other threads, as only they are kept open until
+     * the asynchronous work is done. Only one thread may work with the transaction at a time, so do not use the entity
+     * manager while work submitted to this context is running.
+     *
+     * @return Execution context
+     * @throws java.lang.IllegalStateException if the current thread is not running a transaction of
+     *                                         {@link #withTxPromise}
+     */
+    public static ExecutionContext txExecutionContext() {
+        TxState state = TxState.current();
+        if (state == null || !state.isPromised()) {
+            throw new IllegalStateException("No transaction of Db.withTxPromise bound to the current thread,"
+                    + " other transactions may be closed before asynchronous work is done");
         }
+        return JdbcExecutor.getInstance().forTx(state);
     }
 
     /**
-     * Set default value for {@link #needsCommit} for the current thread.
+     * Reset the commit flag of the current transaction.
      */
     public static void bindNeedsCommitToThread() {
-        needsCommit.set(Boolean.FALSE);
+        TxState state = TxState.current();
+        if (state != null) {
+            state.setCommitNeeded(false);
+        }
     }
 
     /**
@@ -117,6 +236,10 @@ public class Db extends play.db.jpa.JPA {
      */
     public static void commit() {
         play.db.jpa.JPA.em().getTransaction().commit();
+        TxState state = TxState.current();
+        if (state != null) {
+            state.invalidatePending();
+        }
     }
 
     /**
@@ -127,22 +250,76 @@ public class Db extends play.db.jpa.JPA {
         if (tx.isActive()) {
             tx.rollback();
         }
+        TxState state = TxState.current();
+        if (state != null) {
+            state.clearPending();
+        }
     }
 
     /**
      * If commit needed is set, the transaction is committed after the block execution.
      */
     public static void setCommitNeeded() {
-        needsCommit.set(Boolean.TRUE);
+        TxState state = TxState.current();
+        if (state != null) {
+            state.setCommitNeeded(true);
+        }
+    }
+
+    /**
+     * Invalidate cached query results for the given entity class once the current transaction is committed.
+     * <p/>
+     * Transactions not started by {@link #withTx} (e.g. by <b>JPA.withTransaction</b>) are handled the same way. Only
+     * without an active transaction the results are invalidated immediately.
+     *
+     * @param entityClass Written entity class
+     */
+    public static void invalidateAfterCommit(Class<?> entityClass) {
+        TxState state = TxState.current();
+        if (state != null) {
+            state.addPendingInvalidation(entityClass);
+        } else if (!CommitInvalidation.register(play.db.jpa.JPA.em(), entityClass)) {
+            QueryCache.invalidateShared(entityClass);
+        }
+    }
+
+    /**
+     * Check whether entities the given classes depend on were written in the current transaction and their cached
+     * query results are not invalidated yet. Such results must neither be read from nor put into the
+     * {@link QueryCache} by the current transaction.
+     *
+     * @param entityClasses Entity classes to check
+     * @return True if an invalidation of one of the classes is pending
+     */
+    public static boolean isInvalidationPending(Collection<Class<?>> entityClasses) {
+        TxState state = TxState.current();
+        if (state != null) {
+            return state.isInvalidationPending(entityClasses);
+        }
+        return CommitInvalidation.isPending(play.db.jpa.JPA.em(), entityClasses);
+    }
+
+    /**
+     * Count an execution of a query shape in the current transaction (used to detect N+1 patterns).
+     *
+     * @param shape Query shape
+     * @return Number of executions in the current transaction including this one, or 0 outside of a transaction
+     */
+    public static int countExecutionInTx(String shape) {
+        TxState state = TxState.current();
+        return state != null ? state.countExecution(shape) : 0;
     }
 
     /**
-     * Get if a commit is needed.
+     * Get the number of entities to write before a bulk operation flushes and detaches them.
+     * <p/>
+     * Configured by {@link #BATCH_SIZE_KEY} (default {@link #DEFAULT_BATCH_SIZE}). To get JDBC batches, set
+     * <b>hibernate.jdbc.batch_size</b> in your persistence.xml to the same value.
      *
-     * @return If a commit is needed
+     * @return Batch size
      */
-    private static boolean needsCommit() {
-        final Boolean b = needsCommit.get();
-        return (b != null && b);
+    public static int getBatchSize() {
+        Integer batchSize = play.Play.application().configuration().getInt(BATCH_SIZE_KEY);
+        return batchSize != null && batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
     }
 }
@@ -0,0 +1,201 @@
+package com.play4jpa.jpa.db;
+
+import scala.concurrent.ExecutionContext;
+import scala.concurrent.ExecutionContext$;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded thread pool for blocking JDBC work of asynchronous transactions (see
+ * {@link Db#withTxAsync(String, boolean, play.libs.F.Function0)}), keeping it off Play's default dispatcher.
+ * <p/>
+ * The number of threads is configured by <b>play4jpa.executor.threads</b>. It defaults to the size of the default
+ * connection pool (<b>db.default.partitionCount</b> * <b>db.default.maxConnectionsPerPartition</b>), as more threads
+ * would only wait for connections. Work waiting for a thread is queued up to <b>play4jpa.executor.queueSize</b>
+ * (default {@value #DEFAULT_QUEUE_SIZE}) tasks; further work is rejected with a
+ * {@link java.util.concurrent.RejectedExecutionException} instead of piling up under load.
+ * <p/>
+ * The pool of an application is owned by the {@link JdbcExecutorPlugin}, which creates it on start and shuts it down
+ * on stop, so no threads or configuration outlive the application.
+ *
+ * @author agent
+ */
+public final class JdbcExecutor {
+
+    /**
+     * Configuration key for the number of threads
+     */
+    public static final String THREADS_KEY = "play4jpa.executor.threads";
+
+    /**
+     * Configuration key for the maximum number of queued tasks
+     */
+    public static final String QUEUE_SIZE_KEY = "play4jpa.executor.queueSize";
+
+    /**
+     * Default maximum number of queued tasks
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    /**
+     * Default number of connection pool partitions of BoneCP
+     */
+    private static final int DEFAULT_PARTITION_COUNT = 1;
+
+    /**
+     * Default maximum number of connections per partition of BoneCP
+     */
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_PARTITION = 30;
+
+    /**
+     * Thread pool
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Execution context running on {@link #executor}
+     */
+    private final ExecutionContext executionContext;
+
+    /**
+     * Number of threads
+     */
+    private final int threads;
+
+    /**
+     * Create a new executor with a queue of {@link #DEFAULT_QUEUE_SIZE} tasks.
+     *
+     * @param threads Number of threads
+     */
+    public JdbcExecutor(int threads) {
+        this(threads, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * Create a new executor.
+     *
+     * @param threads   Number of threads
+     * @param queueSize Maximum number of tasks waiting for a thread
+     */
+    public JdbcExecutor(int threads, int queueSize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be >= 1");
+        }
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("queueSize must be >= 1");
+        }
+
+        this.threads = threads;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            private final AtomicInteger threadNo = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "play4jpa-jdbc-" + threadNo.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executionContext = ExecutionContext$.MODULE$.fromExecutorService(executor);
+    }
+
+    /**
+     * Get the executor of the running application.
+     *
+     * @return Executor of the {@link JdbcExecutorPlugin}
+     * @throws java.lang.IllegalStateException if the plugin is not enabled or the application is not running
+     */
+    public static JdbcExecutor getInstance() {
+        JdbcExecutorPlugin plugin = play.Play.application().plugin(JdbcExecutorPlugin.class);
+        if (plugin == null) {
+            throw new IllegalStateException("JdbcExecutorPlugin is not enabled, add it to conf/play.plugins");
+        }
+        return plugin.getExecutor();
+    }
+
+    /**
+     * Get the number of threads configured by {@link #THREADS_KEY}, or the size of the default connection pool.
+     *
+     * @param configuration Application configuration
+     * @return Number of threads
+     */
+    public static int getConfiguredThreads(play.Configuration configuration) {
+        Integer threads = configuration.getInt(THREADS_KEY);
+        if (threads != null) {
+            return threads;
+        }
+
+        Integer partitions = configuration.getInt("db.default.partitionCount");
+        Integer connections = configuration.getInt("db.default.maxConnectionsPerPartition");
+        return (partitions != null ? partitions : DEFAULT_PARTITION_COUNT)
+                * (connections != null ? connections : DEFAULT_MAX_CONNECTIONS_PER_PARTITION);
+    }
+
+    /**
+     * Get the maximum number of queued tasks configured by {@link #QUEUE_SIZE_KEY}.
+     *
+     * @param configuration Application configuration
+     * @return Maximum number of queued tasks
+     */
+    public static int getConfiguredQueueSize(play.Configuration configuration) {
+        Integer queueSize = configuration.getInt(QUEUE_SIZE_KEY);
+        return queueSize != null ? queueSize : DEFAULT_QUEUE_SIZE;
+    }
+
+    /**
+     * Shut down the thread pool. Running tasks are completed, new tasks are rejected.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Get the execution context running on this executor.
+     *
+     * @return Execution context
+     */
+    public ExecutionContext getExecutionContext() {
+        return executionContext;
+    }
+
+    /**
+     * Get the number of threads.
+     *
+     * @return Number of threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Get an execution context running on this executor with the given transaction bound to the executing thread.
+     *
+     * @param state Transaction to bind
+     * @return Execution context
+     */
+    ExecutionContext forTx(final TxState state) {
+        return ExecutionContext$.MODULE$.fromExecutor(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        TxState previous = state.bind();
+                        try {
+                            command.run();
+                        } finally {
+                            TxState.restore(previous);
+                        }
+                    }
+                });
+            }
+        });
+    }
+}
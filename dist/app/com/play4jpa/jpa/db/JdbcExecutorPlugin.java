@@ -0,0 +1,54 @@
+package com.play4jpa.jpa.db;
+
+/**
+ * Play plugin owning the {@link JdbcExecutor} of an application: the thread pool is created with the configuration of
+ * the starting application and shut down when it stops (including reloads in dev mode).
+ * <p/>
+ * Registered in <b>conf/play.plugins</b> of this module.
+ *
+ * @author agent
+ */
+public class JdbcExecutorPlugin extends play.Plugin {
+
+    /**
+     * Application owning the executor
+     */
+    private final play.Application application;
+
+    /**
+     * Executor of the running application
+     */
+    private volatile JdbcExecutor executor;
+
+    public JdbcExecutorPlugin(play.Application application) {
+        this.application = application;
+    }
+
+    @Override
+    public void onStart() {
+        executor = new JdbcExecutor(JdbcExecutor.getConfiguredThreads(application.configuration()),
+                JdbcExecutor.getConfiguredQueueSize(application.configuration()));
+    }
+
+    @Override
+    public void onStop() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Get the executor of the running application.
+     *
+     * @return Executor
+     * @throws java.lang.IllegalStateException if the application is not running
+     */
+    public JdbcExecutor getExecutor() {
+        JdbcExecutor current = executor;
+        if (current == null) {
+            throw new IllegalStateException("JdbcExecutorPlugin is not started");
+        }
+        return current;
+    }
+}
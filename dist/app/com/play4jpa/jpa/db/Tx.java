@@ -9,6 +9,9 @@ import java.lang.annotation.Target;
 
 /**
  * Wraps the annotated action in an JPA transaction without a commit.
+ * <p/>
+ * With <b>async = true</b>, the action runs on the {@link JdbcExecutor} and the transaction is kept open until the
+ * promise returned by the action is redeemed (see {@link Db#withTxPromise(String, boolean, play.libs.F.Function0)}).
  *
  * @author Jens (mail@jensjaeger.com)
  */
@@ -19,4 +22,6 @@ public @interface Tx {
     String value() default "default";
 
     boolean readOnly() default false;
+
+    boolean async() default false;
 }
@@ -14,6 +14,26 @@ public class TxAction extends Action<Tx> {
 
     @Override
     public play.libs.F.Promise<play.mvc.SimpleResult> call(final Context ctx) throws Throwable {
+        if (configuration.async()) {
+            return Db.withTxPromise(
+                    configuration.value(),
+                    configuration.readOnly(),
+                    new play.libs.F.Function0<F.Promise<SimpleResult>>() {
+                        @Override
+                        public F.Promise<SimpleResult> apply() throws Throwable {
+                            // The action runs on a thread of the JdbcExecutor
+                            Context previous = Context.current.get();
+                            Context.current.set(ctx);
+                            try {
+                                return delegate.call(ctx);
+                            } finally {
+                                Context.current.set(previous);
+                            }
+                        }
+                    }
+            );
+        }
+
         return Db.withTx(
                 configuration.value(),
                 configuration.readOnly(),
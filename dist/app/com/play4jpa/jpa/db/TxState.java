@@ -0,0 +1,266 @@
+package com.play4jpa.jpa.db;
+
+import com.play4jpa.jpa.query.QueryCache;
+import com.play4jpa.jpa.query.QueryMetrics;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * State of a single JPA transaction: its entity manager, whether a commit is needed and the entity classes to
+ * invalidate in the {@link QueryCache} on commit.
+ * <p/>
+ * A state is bound to the thread currently working in the transaction and can be handed over to other threads (see
+ * {@link JdbcExecutor#forTx(TxState)}), so asynchronous steps of one transaction share the same flags.
+ *
+ * @author agent
+ */
+final class TxState {
+
+    /**
+     * Logger instance
+     */
+    private static final play.Logger.ALogger log = play.Logger.of(TxState.class);
+
+    /**
+     * State bound to the current thread
+     */
+    private static final ThreadLocal<TxState> current = new ThreadLocal<>();
+
+    /**
+     * Persistence unit name
+     */
+    private final String name;
+
+    /**
+     * Entity manager of the transaction
+     */
+    private final EntityManager em;
+
+    /**
+     * Transaction or null for read-only transactions
+     */
+    private final EntityTransaction tx;
+
+    /**
+     * True if the transaction is kept open until a promise is redeemed (see {@link Db#withTxPromise})
+     */
+    private final boolean promised;
+
+    /**
+     * Flag to indicate whether a commit operation is needed
+     */
+    private volatile boolean commitNeeded;
+
+    /**
+     * Entity classes written in the transaction
+     */
+    private final Set<Class<?>> pendingInvalidations = Collections.synchronizedSet(new LinkedHashSet<Class<?>>());
+
+    /**
+     * Start of the transaction for {@link QueryMetrics} (0 if metrics were disabled)
+     */
+    private final long startNanos;
+
+    /**
+     * Number of executions per query shape for {@link QueryMetrics}, created on first use
+     */
+    private Map<String, Integer> executions;
+
+    private TxState(String name, EntityManager em, EntityTransaction tx, boolean promised) {
+        this.name = name;
+        this.em = em;
+        this.tx = tx;
+        this.promised = promised;
+        this.startNanos = QueryMetrics.isActive() ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Create a new entity manager and begin a transaction.
+     *
+     * @param name     Persistence unit name
+     * @param readOnly If true, no transaction is started
+     * @param promised True if the transaction is kept open until a promise is redeemed
+     * @return New state
+     */
+    static TxState open(String name, boolean readOnly, boolean promised) {
+        EntityManager em = play.db.jpa.JPA.em(name);
+        if (readOnly) {
+            return new TxState(name, em, null, promised);
+        }
+
+        try {
+            EntityTransaction tx = em.getTransaction();
+            tx.begin();
+            return new TxState(name, em, tx, promised);
+        } catch (RuntimeException e) {
+            em.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the state bound to the current thread.
+     *
+     * @return Current state or null
+     */
+    static TxState current() {
+        return current.get();
+    }
+
+    /**
+     * Bind this state and its entity manager to the current thread.
+     *
+     * @return Previously bound state (to pass to {@link #restore(TxState)})
+     */
+    TxState bind() {
+        TxState previous = current.get();
+        current.set(this);
+        play.db.jpa.JPA.bindForCurrentThread(em);
+        return previous;
+    }
+
+    /**
+     * Restore the state bound to the current thread before {@link #bind()}.
+     *
+     * @param previous Previously bound state or null
+     */
+    static void restore(TxState previous) {
+        if (previous != null) {
+            current.set(previous);
+            play.db.jpa.JPA.bindForCurrentThread(previous.em);
+        } else {
+            current.remove();
+            play.db.jpa.JPA.bindForCurrentThread(null);
+        }
+    }
+
+    EntityManager getEntityManager() {
+        return em;
+    }
+
+    boolean isPromised() {
+        return promised;
+    }
+
+    void setCommitNeeded(boolean commitNeeded) {
+        this.commitNeeded = commitNeeded;
+    }
+
+    void addPendingInvalidation(Class<?> entityClass) {
+        pendingInvalidations.add(entityClass);
+    }
+
+    /**
+     * Check whether entities the given classes depend on were written in the transaction and not committed yet.
+     *
+     * @param entityClasses Entity classes to check
+     * @return True if an invalidation of one of the classes is pending
+     */
+    boolean isInvalidationPending(Collection<Class<?>> entityClasses) {
+        synchronized (pendingInvalidations) {
+            for (Class<?> pending : pendingInvalidations) {
+                if (QueryCache.dependsOn(entityClasses, pending)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Count an execution of a query shape in this transaction.
+     *
+     * @param shape Query shape
+     * @return Number of executions including this one
+     */
+    synchronized int countExecution(String shape) {
+        if (executions == null) {
+            executions = new HashMap<>();
+        }
+        Integer count = executions.get(shape);
+        count = count != null ? count + 1 : 1;
+        executions.put(shape, count);
+        return count;
+    }
+
+    /**
+     * Invalidate cached query results for all entity classes written in the transaction.
+     */
+    void invalidatePending() {
+        List<Class<?>> pending;
+        synchronized (pendingInvalidations) {
+            pending = new ArrayList<>(pendingInvalidations);
+            pendingInvalidations.clear();
+        }
+        for (Class<?> entityClass : pending) {
+            QueryCache.invalidateShared(entityClass);
+        }
+    }
+
+    /**
+     * Forget all entity classes written in the transaction.
+     */
+    void clearPending() {
+        pendingInvalidations.clear();
+    }
+
+    /**
+     * Commit the transaction if a commit is needed, otherwise roll it back.
+     */
+    void complete() {
+        if (tx != null && tx.isActive()) {
+            if (commitNeeded && !tx.getRollbackOnly()) {
+                tx.commit();
+                invalidatePending();
+                recordMetrics(QueryMetrics.TxOutcome.COMMIT);
+            } else {
+                tx.rollback();
+                recordMetrics(QueryMetrics.TxOutcome.ROLLBACK);
+            }
+        } else {
+            recordMetrics(QueryMetrics.TxOutcome.READ_ONLY);
+        }
+    }
+
+    /**
+     * Roll back the transaction after an error.
+     */
+    void abort() {
+        if (tx != null && tx.isActive()) {
+            try {
+                tx.rollback();
+            } catch (Throwable e) {
+                // Ignore errors on rollback
+                log.error("Error on rollback!", e);
+            }
+        }
+        recordMetrics(tx != null ? QueryMetrics.TxOutcome.ROLLBACK : QueryMetrics.TxOutcome.READ_ONLY);
+    }
+
+    /**
+     * Record the completed transaction in the {@link QueryMetrics} if they were enabled when it started.
+     *
+     * @param outcome Outcome of the transaction
+     */
+    private void recordMetrics(QueryMetrics.TxOutcome outcome) {
+        if (startNanos != 0) {
+            QueryMetrics.getInstance().recordTransaction(name, outcome, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Close the entity manager.
+     */
+    void close() {
+        em.close();
+    }
+}
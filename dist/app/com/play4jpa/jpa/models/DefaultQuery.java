@@ -1,21 +1,55 @@
 package com.play4jpa.jpa.models;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Primitives;
+import com.play4jpa.jpa.db.Db;
+import com.play4jpa.jpa.query.ChunkedInStrategy;
+import com.play4jpa.jpa.query.InStrategy;
 import com.play4jpa.jpa.query.PagedQueryIterator;
+import com.play4jpa.jpa.query.PreparedCriterion;
 import com.play4jpa.jpa.query.Query;
+import com.play4jpa.jpa.query.QueryCache;
+import com.play4jpa.jpa.query.QueryMetrics;
 import com.play4jpa.jpa.query.QueryProxy;
 import org.hibernate.Criteria;
+import org.hibernate.FetchMode;
+import org.hibernate.Hibernate;
+import org.hibernate.HibernateException;
+import org.hibernate.NonUniqueResultException;
+import org.hibernate.SQLQuery;
 import org.hibernate.Session;
 import org.hibernate.criterion.*;
 import org.hibernate.ejb.HibernateEntityManager;
+import org.hibernate.engine.spi.QueryParameters;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.engine.spi.TypedValue;
+import org.hibernate.internal.CriteriaImpl;
+import org.hibernate.loader.criteria.CriteriaJoinWalker;
+import org.hibernate.loader.criteria.CriteriaQueryTranslator;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.collection.AbstractCollectionPersister;
+import org.hibernate.persister.collection.CollectionPersister;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.proxy.HibernateProxy;
 import org.hibernate.sql.JoinType;
+import org.hibernate.type.CollectionType;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
 import play.db.jpa.JPA;
+import play.libs.F;
 
 import javax.persistence.EmbeddedId;
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Default Implementation of the {@link com.play4jpa.jpa.query.Query} interface.
@@ -29,9 +63,19 @@ public class DefaultQuery<T> implements Query<T> {
     /**
      * Maximum number of values for one single (not) IN restriction.
      * <p/>
-     * If the number of values is greater, multiple (not) IN clauses will be added.
+     * If the number of values is greater, multiple (not) IN clauses will be added (see {@link ChunkedInStrategy}).
      */
-    public static final int MAX_IN_SIZE = 500;
+    public static final int MAX_IN_SIZE = ChunkedInStrategy.DEFAULT_MAX_CHUNK_SIZE;
+
+    /**
+     * {@link InStrategy} used by queries without an own strategy.
+     */
+    private static volatile InStrategy defaultInStrategy = new ChunkedInStrategy(MAX_IN_SIZE);
+
+    /**
+     * Maximum number of collection elements kept in a cache key, larger collections are hashed.
+     */
+    private static final int MAX_KEY_ELEMENTS = 64;
 
     /**
      * Maximum alias index before reset to 1
@@ -39,9 +83,9 @@ public class DefaultQuery<T> implements Query<T> {
     private static final int MAX_ALIAS_INDEX = 9999;
 
     /**
-     * Currently used maximum alias index
+     * Counter for alias indexes (wraps around, mapped to 1..{@link #MAX_ALIAS_INDEX})
      */
-    private static int globalAliasIndex = 0;
+    private static final AtomicInteger aliasCounter = new AtomicInteger();
 
     /**
      * {@link java.lang.Class} of queried entity.
@@ -64,6 +108,14 @@ public class DefaultQuery<T> implements Query<T> {
      * Indicates whether an ORDER BY clause is present
      */
     private boolean hasOrder = false;
+    /**
+     * Alialized properties of the ORDER BY clause
+     */
+    private final List<String> orderProperties = new ArrayList<>();
+    /**
+     * Fields of the ORDER BY clause mapped to true if ascending, the keyset of {@link #findPageAfter(String, Object, int)}
+     */
+    private final LinkedHashMap<String, Boolean> orderFields = Maps.newLinkedHashMap();
     /**
      * Accumulated criteria for query.
      */
@@ -78,6 +130,70 @@ public class DefaultQuery<T> implements Query<T> {
      */
     private int maxRows = 0;
 
+    /**
+     * Restriction of the running {@link #findPageAfter(String, Object, int)} or null. Only added to the criteria while
+     * the page is fetched.
+     */
+    private SeekRestriction seekRestriction;
+
+    /**
+     * Normalized description of all restrictions, joins and orders without their values.
+     */
+    private final StringBuilder shape = new StringBuilder();
+
+    /**
+     * Values of the restrictions described by {@link #shape}.
+     */
+    private final List<Object> shapeValues = new ArrayList<>();
+
+    /**
+     * Queries used as sub queries of restrictions.
+     */
+    private final List<Query<?>> subQueries = new ArrayList<>();
+
+    /**
+     * Indicates whether results should be cached in the {@link QueryCache}.
+     */
+    private boolean cacheable = false;
+
+    /**
+     * Indicates whether the criteria were exposed by {@link #getCriteria()} and may contain restrictions not
+     * described by {@link #shape}.
+     */
+    private boolean criteriaExposed = false;
+
+    /**
+     * Temporary session loading results for the {@link QueryCache} (see {@link #querySnapshot(boolean)}) or null.
+     */
+    private Session snapshotSession;
+
+    /**
+     * {@link InStrategy} of this query or null to use {@link #defaultInStrategy}.
+     */
+    private InStrategy inStrategy;
+
+    /**
+     * Indicates whether entities are found by selecting their distinct IDs first (see {@link #setDistinctIds(boolean)}).
+     */
+    private boolean distinctIds = false;
+
+    /**
+     * Associations of {@link #fetch(String)} and {@link #fetchBatch(String, int)} not resolved yet. Resolving needs
+     * the mapping metadata of the current session, so it is done on execution (see {@link #resolveFetches()}).
+     */
+    private final List<String> pendingFetches = new ArrayList<>();
+
+    /**
+     * Association paths fetched by a join in the main statement (see {@link #fetch(String)}).
+     */
+    private final List<String> joinFetches = new ArrayList<>();
+
+    /**
+     * Associations loaded for all results after the main statement, with their batch sizes (see
+     * {@link #fetchBatch(String, int)}).
+     */
+    private final Map<String, Integer> batchFetches = Maps.newLinkedHashMap();
+
     /**
      * Create a new query for given entity type without a proxy.
      *
@@ -89,6 +205,10 @@ public class DefaultQuery<T> implements Query<T> {
 
     /**
      * Create a new query for given entity type and using given proxy.
+     * <p/>
+     * {@link QueryProxy#preExecute(Criteria)} of the proxy is called before each execution.
+     * {@link QueryProxy#prepareQuery(Query)} is not called here, the creator of the query calls it once the query is
+     * constructed (see {@link Finder#query()}).
      *
      * @param entityClass Queried entity class
      * @param proxy       Proxy to apply additional restrictions
@@ -105,13 +225,29 @@ public class DefaultQuery<T> implements Query<T> {
      *
      * @return Alias index for query
      */
-    private static synchronized int getNewAliasIndex() {
-        if (globalAliasIndex == MAX_ALIAS_INDEX) {
-            globalAliasIndex = 1;
-        } else {
-            globalAliasIndex++;
+    private static int getNewAliasIndex() {
+        return (aliasCounter.getAndIncrement() & Integer.MAX_VALUE) % MAX_ALIAS_INDEX + 1;
+    }
+
+    /**
+     * Set the {@link InStrategy} used by all queries that do not set an own strategy.
+     *
+     * @param inStrategy Default strategy
+     */
+    public static void setDefaultInStrategy(InStrategy inStrategy) {
+        if (inStrategy == null) {
+            throw new IllegalArgumentException("inStrategy must not be null");
         }
-        return globalAliasIndex;
+        defaultInStrategy = inStrategy;
+    }
+
+    /**
+     * Get the {@link InStrategy} used by all queries that do not set an own strategy.
+     *
+     * @return Default strategy
+     */
+    public static InStrategy getDefaultInStrategy() {
+        return defaultInStrategy;
     }
 
     public final int getAliasIndex() {
@@ -121,114 +257,133 @@ public class DefaultQuery<T> implements Query<T> {
     @Override
     public Query<T> eq(String field, Object value) {
         criteria.add(Restrictions.eq(alialize(field), value));
+        describe("eq", field, value);
         return this;
     }
 
     @Override
     public Query<T> eqProperty(String field1, String field2) {
         criteria.add(Restrictions.eqProperty(alialize(field1), alialize(field2)));
+        describe("eqProperty", field1 + "," + field2);
         return this;
     }
 
     @Override
     public Query<T> ieq(String field, String value) {
         criteria.add(Restrictions.eq(alialize(field), value).ignoreCase());
+        describe("ieq", field, value);
         return this;
     }
 
     @Override
     public Query<T> ne(String field, Object value) {
         criteria.add(Restrictions.ne(alialize(field), value));
+        describe("ne", field, value);
         return this;
     }
 
     @Override
     public Query<T> neProperty(String field1, String field2) {
         criteria.add(Restrictions.neProperty(alialize(field1), alialize(field2)));
+        describe("neProperty", field1 + "," + field2);
         return this;
     }
 
     @Override
     public Query<T> ilike(String field, String value) {
         criteria.add(Restrictions.ilike(alialize(field), value));
+        describe("ilike", field, value);
         return this;
     }
 
     @Override
     public Query<T> ge(String field, Object value) {
         criteria.add(Restrictions.ge(alialize(field), value));
+        describe("ge", field, value);
         return this;
     }
 
     @Override
     public Query<T> geProperty(String field1, String field2) {
         criteria.add(Restrictions.geProperty(alialize(field1), alialize(field2)));
+        describe("geProperty", field1 + "," + field2);
         return this;
     }
 
     @Override
     public Query<T> gt(String field, Object value) {
         criteria.add(Restrictions.gt(alialize(field), value));
+        describe("gt", field, value);
         return this;
     }
 
     @Override
     public Query<T> gtProperty(String field1, String field2) {
         criteria.add(Restrictions.gtProperty(alialize(field1), alialize(field2)));
+        describe("gtProperty", field1 + "," + field2);
         return this;
     }
 
     @Override
     public Query<T> le(String field, Object value) {
         criteria.add(Restrictions.le(alialize(field), value));
+        describe("le", field, value);
         return this;
     }
 
     @Override
     public Query<T> leProperty(String field1, String field2) {
         criteria.add(Restrictions.leProperty(alialize(field1), alialize(field2)));
+        describe("leProperty", field1 + "," + field2);
         return this;
     }
 
     @Override
     public Query<T> lt(String field, Object value) {
         criteria.add(Restrictions.lt(alialize(field), value));
+        describe("lt", field, value);
         return this;
     }
 
     @Override
     public Query<T> ltProperty(String field1, String field2) {
         criteria.add(Restrictions.ltProperty(alialize(field1), alialize(field2)));
+        describe("ltProperty", field1 + "," + field2);
         return this;
     }
 
     @Override
     public Query<T> between(String field, Object lo, Object hi) {
         criteria.add(Restrictions.between(alialize(field), lo, hi));
+        describe("between", field, lo, hi);
         return this;
     }
 
     @Override
     public Query<T> isNull(String field) {
         criteria.add(Restrictions.isNull(alialize(field)));
+        describe("isNull", field);
         return this;
     }
 
     @Override
     public Query<T> isNotNull(String field) {
         criteria.add(Restrictions.isNotNull(alialize(field)));
+        describe("isNotNull", field);
         return this;
     }
 
     @Override
     public Query<T> or(Criterion... predicates) {
         criteria.add(Restrictions.or(predicates));
+        describePredicates("or", predicates);
         return this;
     }
 
     @Override
     public Query<T> and(Criterion... predicates) {
         criteria.add(Restrictions.and(predicates));
+        describePredicates("and", predicates);
         return this;
     }
 
@@ -238,11 +393,9 @@ public class DefaultQuery<T> implements Query<T> {
             throw new IllegalArgumentException("At least one value must be present");
         }
 
-        SplitCollectionIterator<?> splitIterator = new SplitCollectionIterator<>(MAX_IN_SIZE, values);
-        while (splitIterator.hasNext()) {
-            criteria.add(Restrictions.in(alialize(field), splitIterator.next()));
-        }
+        criteria.add(getInStrategy().in(alialize(field), values, false));
 
+        describe("in", field, values);
         return this;
     }
 
@@ -250,6 +403,7 @@ public class DefaultQuery<T> implements Query<T> {
     public Query<T> in(String field, Query<?> subQuery, String subField) {
         DetachedCriteria subQueryCriteria = criteriaForSubQuery(subQuery, Projections.property(subField));
         criteria.add(Subqueries.propertyIn(alialize(field), subQueryCriteria));
+        describeSubQuery("in", field, subQuery, subField);
         return this;
     }
 
@@ -259,11 +413,9 @@ public class DefaultQuery<T> implements Query<T> {
             throw new IllegalArgumentException("At least one value must be present");
         }
 
-        SplitCollectionIterator<?> splitIterator = new SplitCollectionIterator<>(MAX_IN_SIZE, values);
-        while (splitIterator.hasNext()) {
-            criteria.add(Restrictions.not(Restrictions.in(alialize(field), splitIterator.next())));
-        }
+        criteria.add(getInStrategy().in(alialize(field), values, true));
 
+        describe("notIn", field, values);
         return this;
     }
 
@@ -271,6 +423,7 @@ public class DefaultQuery<T> implements Query<T> {
     public Query<T> notIn(String field, Query<?> subQuery, String subField) {
         DetachedCriteria subQueryCriteria = criteriaForSubQuery(subQuery, Projections.property(subField));
         criteria.add(Subqueries.propertyNotIn(alialize(field), subQueryCriteria));
+        describeSubQuery("notIn", field, subQuery, subField);
         return this;
     }
 
@@ -283,6 +436,7 @@ public class DefaultQuery<T> implements Query<T> {
         String associationAlias = createAlias(association);
         String alialized = alialize(association);
         criteria.createAlias(alialized, associationAlias);
+        describe("join", association);
         return this;
     }
 
@@ -295,33 +449,53 @@ public class DefaultQuery<T> implements Query<T> {
         String associationAlias = createAlias(association);
         String alialized = alialize(association);
         criteria.createAlias(alialized, associationAlias, JoinType.LEFT_OUTER_JOIN);
+        describe("leftJoin", association);
         return this;
     }
 
     @Override
     public Query<T> orderByAsc(String field) {
         hasOrder = true;
+        orderProperties.add(alialize(field));
+        addOrderField(field, true);
         criteria.addOrder(Order.asc(alialize(field)));
+        describe("orderByAsc", field);
         return this;
     }
 
     @Override
     public Query<T> orderByDesc(String field) {
         hasOrder = true;
+        orderProperties.add(alialize(field));
+        addOrderField(field, false);
         criteria.addOrder(Order.desc(alialize(field)));
+        describe("orderByDesc", field);
         return this;
     }
 
+    /**
+     * Remember a field of the ORDER BY clause. Later orders on the same field do not change the result order.
+     *
+     * @param field     Ordered field
+     * @param ascending True if ascending
+     */
+    private void addOrderField(String field, boolean ascending) {
+        if (!orderFields.containsKey(field)) {
+            orderFields.put(field, ascending);
+        }
+    }
+
     @Override
     public long findRowCount() {
         if (hasOrder) {
             throw new IllegalStateException("Cannot count rows when ORDER BY is present");
         }
 
-        criteria.setProjection(Projections.rowCount());
-        Long count = (Long) executablePlainCriteria().uniqueResult();
-        criteria.setProjection(null);
-        return count;
+        if (distinctIds) {
+            String idProperty = getClassMetadata().getIdentifierPropertyName();
+            return findCount("countDistinct(" + idProperty + ")", Projections.countDistinct(idProperty));
+        }
+        return findCount("rowCount", Projections.rowCount());
     }
 
     @Override
@@ -330,34 +504,115 @@ public class DefaultQuery<T> implements Query<T> {
             throw new IllegalStateException("Cannot count rows when ORDER BY is present");
         }
 
-        criteria.setProjection(Projections.countDistinct(alialize(field)));
-        Long count = (Long) executablePlainCriteria().uniqueResult();
+        return findCount("countDistinct(" + field + ")", Projections.countDistinct(alialize(field)));
+    }
+
+    /**
+     * Execute a count projection, using the {@link QueryCache} if the query is cacheable.
+     *
+     * @param terminal   Description of the projection for the cache key
+     * @param projection Count projection
+     * @return Count
+     */
+    private long findCount(String terminal, Projection projection) {
+        String key = null;
+        long generation = 0;
+        if (useCache()) {
+            key = cacheKey(terminal);
+            Long cached = (Long) QueryCache.getInstance().get(key);
+            if (cached != null) {
+                return cached;
+            }
+            generation = QueryCache.getInstance().getGeneration();
+        }
+
+        criteria.setProjection(projection);
+        Long count = (Long) uniqueResult(terminal, executablePlainCriteria());
         criteria.setProjection(null);
+
+        if (key != null) {
+            QueryCache.getInstance().put(key, count, getEntityClasses(), generation);
+        }
         return count;
     }
 
     @Override
     public T byId(Object id) {
         criteria.add(Restrictions.idEq(id));
+        describe("idEq", "", id);
         return findUnique();
     }
 
     @Override
     public T byNaturalId(String field, Object id) {
         criteria.add(Restrictions.naturalId().set(field, id));
+        describe("naturalId", field, id);
         return findUnique();
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public T findUnique() {
-        return (T) executableEntityCriteria().uniqueResult();
+        if (!useCache()) {
+            return queryUnique();
+        }
+
+        List<T> result = findCachedSnapshot("unique", true);
+        return result.isEmpty() ? null : result.get(0);
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public List<T> findList() {
-        return executableEntityCriteria().list();
+        if (!useCache()) {
+            return queryList();
+        }
+
+        return findCachedSnapshot("list", false);
+    }
+
+    /**
+     * Get the results of this query from the {@link QueryCache}, executing it on a miss (see
+     * {@link #querySnapshot(boolean)}).
+     *
+     * @param terminal Description of the execution for the cache key
+     * @param unique   True to find a unique entity
+     * @return Cached, read-only list of detached entities
+     */
+    @SuppressWarnings("unchecked")
+    private List<T> findCachedSnapshot(String terminal, boolean unique) {
+        String key = cacheKey(terminal);
+        List<T> cached = (List<T>) QueryCache.getInstance().get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        long generation = QueryCache.getInstance().getGeneration();
+        List<T> result = querySnapshot(unique);
+        QueryCache.getInstance().put(key, result, getEntityClasses(), generation);
+        return result;
+    }
+
+    /**
+     * Execute this query in a temporary read-only session sharing the connection and transaction of the current
+     * entity manager. The results are detached when the session is closed, so they can be shared by all callers of
+     * the {@link QueryCache} without touching the persistence context of the current entity manager.
+     *
+     * @param unique True to find a unique entity
+     * @return Read-only list of detached entities
+     */
+    private List<T> querySnapshot(boolean unique) {
+        Session session = getSession().sessionWithOptions().connection().openSession();
+        session.setDefaultReadOnly(true);
+        snapshotSession = session;
+        try {
+            if (unique) {
+                T result = queryUnique();
+                return result != null ? Collections.singletonList(result) : Collections.<T>emptyList();
+            }
+            return Collections.unmodifiableList(new ArrayList<>(queryList()));
+        } finally {
+            snapshotSession = null;
+            session.close();
+        }
     }
 
     @Override
@@ -373,154 +628,1329 @@ public class DefaultQuery<T> implements Query<T> {
         return result;
     }
 
-    @Override
-    public int findMaxValue(String field) {
-        criteria.setProjection(Projections.max(field));
-        final Integer result = (Integer)executablePlainCriteria().uniqueResult();
-        criteria.setProjection(null);
-        return result != null ? result.intValue() : 0 ;
+    /**
+     * Execute this query for all matching entities without the {@link QueryCache}.
+     *
+     * @return All matching entities
+     */
+    @SuppressWarnings("unchecked")
+    private List<T> queryList() {
+        resolveFetches();
+        if (distinctIds) {
+            return loadByIds(findDistinctIds());
+        }
+        List<T> result = (List<T>) list("list", executableEntityCriteria());
+        loadBatchFetches(result);
+        return result;
     }
 
-    @Override
-    public PagedQueryIterator<T> findPagedIterator(int pageSize) {
-        return null;
+    /**
+     * Execute this query for a unique entity without the {@link QueryCache}.
+     *
+     * @return Unique entity or null
+     */
+    @SuppressWarnings("unchecked")
+    private T queryUnique() {
+        resolveFetches();
+        if (distinctIds) {
+            List<Serializable> ids = findDistinctIds();
+            if (ids.size() > 1) {
+                throw new NonUniqueResultException(ids.size());
+            }
+            List<T> result = loadByIds(ids);
+            return result.isEmpty() ? null : result.get(0);
+        }
+        T result = (T) uniqueResult("unique", executableEntityCriteria());
+        if (result != null) {
+            loadBatchFetches(Collections.singletonList(result));
+        }
+        return result;
     }
 
-    @Override
-    public PagedQueryIterator<T> findPagedIterator(int startPage, int pageSize) {
-        return null;
-    }
+    /**
+     * Select the distinct IDs of all matching entities in the order and page of this query. The properties of the
+     * ORDER BY clause are selected as well, as SQL requires them in the select list of a DISTINCT query.
+     *
+     * @return Distinct IDs
+     */
+    private List<Serializable> findDistinctIds() {
+        ProjectionList projection = Projections.projectionList().add(Projections.id());
+        for (String orderProperty : orderProperties) {
+            projection.add(Projections.property(orderProperty));
+        }
 
-    @Override
-    public DetachedCriteria getCriteria() {
-        return criteria;
-    }
+        List<?> rows;
+        criteria.setProjection(Projections.distinct(projection));
+        try {
+            rows = list("distinctIds", executablePlainCriteria());
+        } finally {
+            criteria.setProjection(null);
+        }
 
-    @Override
-    public int getFirstResult() {
-        return firstResult;
+        List<Serializable> ids = new ArrayList<>(rows.size());
+        for (Object row : rows) {
+            ids.add((Serializable) (row instanceof Object[] ? ((Object[]) row)[0] : row));
+        }
+        return ids;
     }
 
     @Override
-    public Query<T> setFirstResult(int firstResult) {
-        if (firstResult < 0) {
-            throw new IllegalArgumentException("firstResult must be >=0 (0 for reset)");
+    public List<Object[]> select(String... fields) {
+        List<?> rows = selectRows(fields);
+        List<Object[]> result = new ArrayList<>(rows.size());
+        for (Object row : rows) {
+            result.add(fields.length == 1 ? new Object[]{row} : (Object[]) row);
         }
-        this.firstResult = firstResult;
-        return this;
+        return result;
     }
 
     @Override
-    public int getMaxRows() {
-        return maxRows;
+    public List<Map<String, Object>> selectMaps(String... fields) {
+        List<Object[]> rows = select(fields);
+        List<Map<String, Object>> result = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            Map<String, Object> map = Maps.newLinkedHashMap();
+            for (int i = 0; i < fields.length; i++) {
+                map.put(fields[i], row[i]);
+            }
+            result.add(map);
+        }
+        return result;
     }
 
     @Override
-    public Query<T> setMaxRows(int maxRows) {
-        if (maxRows < 0) {
-            throw new IllegalArgumentException("maxRows must be >=0 (0 for reset)");
+    public <D> List<D> select(Class<D> resultClass, String... fields) {
+        Class<?>[] fieldTypes = new Class<?>[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            fieldTypes[i] = Primitives.wrap(getPathType(fields[i]).getReturnedClass());
         }
-        this.maxRows = maxRows;
-        return this;
-    }
+        Constructor<?> constructor = findConstructor(resultClass, fieldTypes);
 
-    public final String createAlias(String association) {
-        if (aliases.containsKey(association)) {
-            throw new IllegalStateException("There is already an alias for " + association);
-        }
+        List<Object[]> rows = select(fields);
+        List<D> result = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            if (!accepts(constructor, row)) {
+                throw new IllegalArgumentException(constructor + " does not accept " + Arrays.toString(row));
+            }
 
-        String newAlias = association.replace(".", "_") + "_" + aliasIndex;
-        aliases.put(association, newAlias);
-        return newAlias;
+            try {
+                result.add(resultClass.cast(constructor.newInstance(row)));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Could not create " + resultClass, e);
+            }
+        }
+        return result;
     }
 
-    public final String alialize(String field) {
-        if (Strings.isNullOrEmpty(field)) {
-            throw new IllegalArgumentException("field must not be empty");
+    /**
+     * Find the constructor of a result class to pass projected values of the given types to. Of all constructors
+     * accepting the types, the most specific one is used.
+     *
+     * @param resultClass Class of results
+     * @param fieldTypes  Types of projected values (wrapped if primitive)
+     * @return Accessible constructor
+     * @throws java.lang.IllegalArgumentException if no or more than one most specific constructor accepts the types
+     */
+    private static Constructor<?> findConstructor(Class<?> resultClass, Class<?>[] fieldTypes) {
+        List<Constructor<?>> candidates = new ArrayList<>();
+        for (Constructor<?> constructor : resultClass.getDeclaredConstructors()) {
+            if (isAssignable(fieldTypes, constructor.getParameterTypes())) {
+                candidates.add(constructor);
+            }
         }
-
-        if (!field.contains(".")) {
-            return field;
+        if (candidates.isEmpty()) {
+            throw new IllegalArgumentException(resultClass + " has no constructor accepting "
+                    + Arrays.toString(fieldTypes));
         }
 
-        if (aliases.containsKey(field)) {
-            return aliases.get(field);
+        List<Constructor<?>> mostSpecific = new ArrayList<>();
+        for (Constructor<?> candidate : candidates) {
+            boolean specific = true;
+            for (Constructor<?> other : candidates) {
+                if (!isAssignable(candidate.getParameterTypes(), other.getParameterTypes())) {
+                    specific = false;
+                    break;
+                }
+            }
+            if (specific) {
+                mostSpecific.add(candidate);
+            }
         }
-
-        int lastDot = field.lastIndexOf(".");
-        String path = field.substring(0, lastDot);
-        String name = field.substring(lastDot + 1);
-        if (!aliases.containsKey(path)) {
-            throw new IllegalStateException("Cannot alialize " + field + ", first join on " + path);
+        if (mostSpecific.size() != 1) {
+            throw new IllegalArgumentException("Ambiguous constructors of " + resultClass + " for "
+                    + Arrays.toString(fieldTypes) + ": " + candidates);
         }
 
-        return aliases.get(path) + "." + name;
+        Constructor<?> constructor = mostSpecific.get(0);
+        constructor.setAccessible(true);
+        return constructor;
     }
 
     /**
-     * Get executable criteria with entity transformer (e.g. for {@link #findUnique()}).
+     * Check whether values of the given types can be passed to parameters of the given types.
      *
-     * @return Executable criteria
+     * @param types          Types of values
+     * @param parameterTypes Types of parameters
+     * @return True if the numbers match and each value type is assignable to its (wrapped) parameter type
      */
-    private Criteria executableEntityCriteria() {
-        return executableCriteria(true);
+    private static boolean isAssignable(Class<?>[] types, Class<?>[] parameterTypes) {
+        if (types.length != parameterTypes.length) {
+            return false;
+        }
+        for (int i = 0; i < types.length; i++) {
+            if (!Primitives.wrap(parameterTypes[i]).isAssignableFrom(Primitives.wrap(types[i]))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
-     * Get executable criteria without entity transformer (e.g. for {@link #findRowCount()}).
+     * Get the Hibernate type of a field or a path of fields along associations (e.g. <b>creator.name</b>) of the
+     * queried entity.
      *
-     * @return Executable criteria
+     * @param path Field or path of fields
+     * @return Type of the last field
      */
-    private Criteria executablePlainCriteria() {
-        return executableCriteria(false);
+    private Type getPathType(String path) {
+        SessionFactoryImplementor factory = ((SessionImplementor) getSession()).getFactory();
+        ClassMetadata metadata = getClassMetadata();
+        Type type = null;
+        for (String field : path.split("\\.")) {
+            if (metadata == null) {
+                throw new IllegalArgumentException("Cannot select " + path + ", " + field + " is not a field of an entity");
+            }
+
+            type = field.equals(metadata.getIdentifierPropertyName()) ? metadata.getIdentifierType()
+                    : metadata.getPropertyType(field);
+            if (type.isCollectionType()) {
+                type = ((CollectionType) type).getElementType(factory);
+            }
+            metadata = type.isEntityType()
+                    ? factory.getClassMetadata(((EntityType) type).getAssociatedEntityName(factory)) : null;
+        }
+        return type;
     }
 
     /**
-     * Get an executable criteria from the current detached criteria. If forRootEntity is true, a
-     * {@link org.hibernate.transform.DistinctRootEntityResultTransformer} will be added (needed if you want to
-     * get entities out of the query).
+     * Execute a read-only projection of the given fields. Associations of paths not joined yet are left-joined for
+     * this projection only, so the query can still be executed unchanged afterwards.
      *
-     * @param forRootEntity True, if entities should be returned by the query
-     * @return Executable criteria
+     * @param fields Fields to select
+     * @return Rows (single values if only one field is selected)
      */
-    private Criteria executableCriteria(boolean forRootEntity) {
-        HibernateEntityManager entityManager = JPA.em().unwrap(HibernateEntityManager.class);
-        Session session = entityManager.getSession();
-        Criteria executableCriteria = criteria.getExecutableCriteria(session);
-
-        if (forRootEntity) {
-            executableCriteria.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+    private List<?> selectRows(String... fields) {
+        if (fields.length == 0) {
+            throw new IllegalArgumentException("At least one field must be selected");
         }
-        if (maxRows > 0) {
-            executableCriteria.setMaxResults(maxRows);
+
+        int numAliases = aliases.size();
+        int shapeLength = shape.length();
+        try {
+            ProjectionList projection = Projections.projectionList();
+            for (String field : fields) {
+                joinPath(field);
+                projection.add(Projections.property(alialize(field)));
+            }
+
+            criteria.setProjection(distinctIds ? Projections.distinct(projection) : projection);
+            Criteria executableCriteria = executablePlainCriteria();
+            executableCriteria.setReadOnly(true);
+            return list("select", executableCriteria);
+        } finally {
+            criteria.setProjection(null);
+            removeJoins(numAliases, shapeLength);
         }
-        if (firstResult > 0) {
-            executableCriteria.setFirstResult(firstResult);
+    }
+
+    /**
+     * Remove all joins added after the first numAliases aliases, restoring the shape of this query.
+     *
+     * @param numAliases  Number of aliases to keep
+     * @param shapeLength Length of the shape before the joins were added
+     */
+    private void removeJoins(int numAliases, int shapeLength) {
+        if (aliases.size() == numAliases) {
+            return;
         }
-        if (proxy != null) {
-            proxy.preExecute(executableCriteria);
+
+        Set<String> removedAliases = new HashSet<>();
+        Iterator<String> aliasIterator = aliases.values().iterator();
+        for (int i = 0; aliasIterator.hasNext(); i++) {
+            String alias = aliasIterator.next();
+            if (i >= numAliases) {
+                removedAliases.add(alias);
+                aliasIterator.remove();
+            }
         }
 
-        return executableCriteria;
+        // Joins are sub criteria of the underlying criteria implementation
+        Iterator<CriteriaImpl.Subcriteria> subcriteria =
+                ((CriteriaImpl) criteria.getExecutableCriteria(getSession())).iterateSubcriteria();
+        while (subcriteria.hasNext()) {
+            if (removedAliases.contains(subcriteria.next().getAlias())) {
+                subcriteria.remove();
+            }
+        }
+        shape.setLength(shapeLength);
     }
 
     /**
-     * Transform subQuery into detached criteria and apply projection if given.
+     * Left-join all associations on the path of a field which are not joined yet.
      *
-     * @param subQuery   Sub query to transform (must not be this)
-     * @param projection Projection to apply (can be null)
-     * @return Detached criteria representing subQuery
+     * @param field Field path
      */
-    private DetachedCriteria criteriaForSubQuery(Query<?> subQuery, Projection projection) {
-        if (subQuery == this) {
-            throw new IllegalArgumentException("SubQuery must be different from main query");
+    private void joinPath(String field) {
+        int dot = field.indexOf('.');
+        while (dot > 0) {
+            String path = field.substring(0, dot);
+            if (!aliases.containsKey(path)) {
+                leftJoin(path);
+            }
+            dot = field.indexOf('.', dot + 1);
         }
+    }
 
-        DetachedCriteria subQueryCriteria = subQuery.getCriteria();
-        if (projection != null) {
-            subQueryCriteria.setProjection(projection);
+    /**
+     * Check whether a constructor accepts the given values.
+     *
+     * @param constructor Constructor to check
+     * @param values      Values
+     * @return True if all values can be passed to the constructor
+     */
+    private static boolean accepts(Constructor<?> constructor, Object[] values) {
+        Class<?>[] parameterTypes = constructor.getParameterTypes();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (values[i] == null ? parameterTypes[i].isPrimitive()
+                    : !Primitives.wrap(parameterTypes[i]).isInstance(values[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public F.Promise<List<T>> findListAsync() {
+        return F.Promise.promise(new F.Function0<List<T>>() {
+            @Override
+            public List<T> apply() throws Throwable {
+                return findList();
+            }
+        }, Db.txExecutionContext());
+    }
+
+    @Override
+    public F.Promise<T> findUniqueAsync() {
+        return F.Promise.promise(new F.Function0<T>() {
+            @Override
+            public T apply() throws Throwable {
+                return findUnique();
+            }
+        }, Db.txExecutionContext());
+    }
+
+    @Override
+    public F.Promise<Long> findRowCountAsync() {
+        return F.Promise.promise(new F.Function0<Long>() {
+            @Override
+            public Long apply() throws Throwable {
+                return findRowCount();
+            }
+        }, Db.txExecutionContext());
+    }
+
+    @Override
+    public int findMaxValue(String field) {
+        criteria.setProjection(Projections.max(field));
+        final Integer result = (Integer) uniqueResult("max(" + field + ")", executablePlainCriteria());
+        criteria.setProjection(null);
+        return result != null ? result.intValue() : 0 ;
+    }
+
+    @Override
+    public int delete() {
+        AbstractEntityPersister persister = getEntityPersister();
+        List<String> statements = new ArrayList<>();
+
+        // Rows of collection tables (e.g. join tables of many-to-many associations) reference the deleted rows
+        SessionFactoryImplementor factory = ((SessionImplementor) getSession()).getFactory();
+        for (Type type : persister.getPropertyTypes()) {
+            if (type.isCollectionType()) {
+                CollectionPersister collection = factory.getCollectionPersister(((CollectionType) type).getRole());
+                if (!collection.isOneToMany()) {
+                    AbstractCollectionPersister collectionPersister = (AbstractCollectionPersister) collection;
+                    statements.add("delete from " + collectionPersister.getTableName() + " where "
+                            + getSingleColumn(collectionPersister.getKeyColumnNames()));
+                }
+            }
+        }
+
+        statements.add("delete from " + persister.getTableName() + " where "
+                + getSingleColumn(persister.getIdentifierColumnNames()));
+        return executeBulkDml(statements, null, null);
+    }
+
+    @Override
+    public int update(String field, Object value) {
+        if (Strings.isNullOrEmpty(field) || field.contains(".")) {
+            throw new IllegalArgumentException("field must be a property of the queried entity");
+        }
+
+        AbstractEntityPersister persister = getEntityPersister();
+        String[] columns = persister.getPropertyColumnNames(field);
+        if (columns.length != 1) {
+            throw new IllegalArgumentException("Cannot update " + field + ", it must be mapped to a single column");
+        }
+
+        String dml = "update " + persister.getTableName() + " set " + columns[0] + " = ? where "
+                + getSingleColumn(persister.getIdentifierColumnNames());
+        return executeBulkDml(Collections.singletonList(dml), value, persister.getPropertyType(field));
+    }
+
+    @Override
+    public PagedQueryIterator<T> findPagedIterator(int pageSize) {
+        return findPagedIterator(1, pageSize);
+    }
+
+    @Override
+    public PagedQueryIterator<T> findPagedIterator(int startPage, int pageSize) {
+        PagedQueryIterator<T> iterator = new PagedQueryIterator<>(this, pageSize);
+        iterator.setPageNo(startPage);
+        return iterator;
+    }
+
+    @Override
+    public PagedQueryIterator<T> findSeekIterator(int pageSize) {
+        return findSeekIterator(getClassMetadata().getIdentifierPropertyName(), pageSize);
+    }
+
+    @Override
+    public PagedQueryIterator<T> findSeekIterator(String field, int pageSize) {
+        return new PagedQueryIterator<>(this, field, pageSize);
+    }
+
+    @Override
+    public List<T> findPageAfter(String field, T last, int pageSize) {
+        if (Strings.isNullOrEmpty(field) || field.contains(".")) {
+            throw new IllegalArgumentException("field must be a property of the queried entity");
+        }
+
+        // Keyset: the orders of the query, then field and the ID as tiebreaker
+        LinkedHashMap<String, Boolean> keyFields = Maps.newLinkedHashMap(orderFields);
+        List<Order> pageOrders = new ArrayList<>();
+        for (String keyField : Arrays.asList(field, getClassMetadata().getIdentifierPropertyName())) {
+            if (!keyFields.containsKey(keyField)) {
+                keyFields.put(keyField, true);
+                pageOrders.add(Order.asc(keyField));
+            }
+        }
+
+        List<String> keyProperties = new ArrayList<>(keyFields.size());
+        List<Object> keyValues = last != null ? new ArrayList<>(keyFields.size()) : null;
+        for (String keyField : keyFields.keySet()) {
+            keyProperties.add(alialize(keyField));
+            if (last != null) {
+                Object value = getPathValue(last, keyField);
+                if (value == null) {
+                    throw new IllegalStateException("Cannot seek after an entity whose " + keyField + " is null");
+                }
+                keyValues.add(value);
+            }
+        }
+
+        SeekRestriction restriction = new SeekRestriction(keyProperties, Lists.newArrayList(keyFields.values()),
+                keyValues);
+        criteria.add(restriction);
+        for (Order order : pageOrders) {
+            criteria.addOrder(order);
+        }
+        orderProperties.addAll(keyProperties.subList(keyProperties.size() - pageOrders.size(), keyProperties.size()));
+        seekRestriction = restriction;
+        setFirstResult(0);
+        setMaxRows(pageSize);
+        try {
+            return findList();
+        } finally {
+            // The seek restriction and orders only apply to this page
+            setMaxRows(0);
+            seekRestriction = null;
+            orderProperties.subList(orderProperties.size() - pageOrders.size(), orderProperties.size()).clear();
+            removeFromCriteria(restriction, pageOrders);
+        }
+    }
+
+    /**
+     * Remove a restriction and orders added for a single execution from the criteria.
+     *
+     * @param restriction Restriction to remove
+     * @param orders      Orders to remove
+     */
+    private void removeFromCriteria(Criterion restriction, List<Order> orders) {
+        CriteriaImpl criteriaImpl = (CriteriaImpl) criteria.getExecutableCriteria(getSession());
+        Iterator<CriteriaImpl.CriterionEntry> restrictions = criteriaImpl.iterateExpressionEntries();
+        while (restrictions.hasNext()) {
+            if (restrictions.next().getCriterion() == restriction) {
+                restrictions.remove();
+            }
+        }
+        Iterator<CriteriaImpl.OrderEntry> orderings = criteriaImpl.iterateOrderings();
+        while (orderings.hasNext()) {
+            Order order = orderings.next().getOrder();
+            for (Order removed : orders) {
+                if (order == removed) {
+                    orderings.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public DetachedCriteria getCriteria() {
+        criteriaExposed = true;
+        return criteria;
+    }
+
+    @Override
+    public Query<T> setInStrategy(InStrategy inStrategy) {
+        this.inStrategy = inStrategy;
+        return this;
+    }
+
+    @Override
+    public InStrategy getInStrategy() {
+        return inStrategy != null ? inStrategy : defaultInStrategy;
+    }
+
+    @Override
+    public Query<T> setCacheable(boolean cacheable) {
+        if (cacheable && proxy != null && !Model.inheritsPreExecute(proxy)) {
+            throw new IllegalStateException("Cannot cache results of " + entityClass.getName()
+                    + " queries, restrictions of QueryProxy.preExecute() are not part of the cache key");
+        }
+        this.cacheable = cacheable;
+        return this;
+    }
+
+    @Override
+    public boolean isCacheable() {
+        return cacheable;
+    }
+
+    @Override
+    public Query<T> fetch(String association) {
+        if (Strings.isNullOrEmpty(association)) {
+            throw new IllegalArgumentException("association must not be empty");
+        }
+
+        if (!pendingFetches.contains(association) && !joinFetches.contains(association)
+                && !batchFetches.containsKey(association)) {
+            pendingFetches.add(association);
+            describe("fetch", association);
+        }
+        return this;
+    }
+
+    @Override
+    public Query<T> fetchBatch(String association, int batchSize) {
+        if (Strings.isNullOrEmpty(association) || association.contains(".")) {
+            throw new IllegalArgumentException("association must be an association of the queried entity");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be >= 1");
+        }
+
+        batchFetches.put(association, batchSize);
+        if (!pendingFetches.contains(association)) {
+            pendingFetches.add(association);
+        }
+        describe("fetchBatch", association);
+        return this;
+    }
+
+    /**
+     * Resolve the associations of {@link #fetch(String)} and {@link #fetchBatch(String, int)} added since the last
+     * execution: to-one associations of {@link #fetch(String)} are joined, collections are loaded in batches.
+     *
+     * @throws java.lang.IllegalArgumentException if a path is no association of the queried entity
+     */
+    private void resolveFetches() {
+        if (pendingFetches.isEmpty()) {
+            return;
+        }
+
+        for (String association : pendingFetches) {
+            Type type = getPropertyType(association);
+            if (!type.isAssociationType()) {
+                throw new IllegalArgumentException(association + " is no association of " + entityClass.getName());
+            }
+
+            if (batchFetches.containsKey(association)) {
+                continue;
+            }
+            if (type.isCollectionType()) {
+                batchFetches.put(association, MAX_IN_SIZE);
+            } else {
+                criteria.setFetchMode(association, FetchMode.JOIN);
+                joinFetches.add(association);
+            }
+        }
+        pendingFetches.clear();
+    }
+
+    @Override
+    public Query<T> setDistinctIds(boolean distinctIds) {
+        if (distinctIds && !this.distinctIds) {
+            describe("distinctIds", "");
+        }
+        this.distinctIds = distinctIds;
+        return this;
+    }
+
+    @Override
+    public boolean isDistinctIds() {
+        return distinctIds;
+    }
+
+    /**
+     * Get a normalized description of all restrictions, joins and orders of this query without their values, e.g.
+     * <b>join(creator)eq(creator.name)orderByAsc(priority)</b>.
+     *
+     * @return Query shape
+     */
+    public final String getShape() {
+        return shape.toString();
+    }
+
+    @Override
+    public int getFirstResult() {
+        return firstResult;
+    }
+
+    @Override
+    public Query<T> setFirstResult(int firstResult) {
+        if (firstResult < 0) {
+            throw new IllegalArgumentException("firstResult must be >=0 (0 for reset)");
+        }
+        this.firstResult = firstResult;
+        return this;
+    }
+
+    @Override
+    public int getMaxRows() {
+        return maxRows;
+    }
+
+    @Override
+    public Query<T> setMaxRows(int maxRows) {
+        if (maxRows < 0) {
+            throw new IllegalArgumentException("maxRows must be >=0 (0 for reset)");
+        }
+        this.maxRows = maxRows;
+        return this;
+    }
+
+    public final String createAlias(String association) {
+        if (aliases.containsKey(association)) {
+            throw new IllegalStateException("There is already an alias for " + association);
+        }
+
+        String newAlias = association.replace(".", "_") + "_" + aliasIndex;
+        aliases.put(association, newAlias);
+        return newAlias;
+    }
+
+    public final String alialize(String field) {
+        if (Strings.isNullOrEmpty(field)) {
+            throw new IllegalArgumentException("field must not be empty");
+        }
+
+        if (!field.contains(".")) {
+            return field;
+        }
+
+        if (aliases.containsKey(field)) {
+            return aliases.get(field);
+        }
+
+        int lastDot = field.lastIndexOf(".");
+        String path = field.substring(0, lastDot);
+        String name = field.substring(lastDot + 1);
+        if (!aliases.containsKey(path)) {
+            throw new IllegalStateException("Cannot alialize " + field + ", first join on " + path);
+        }
+
+        return aliases.get(path) + "." + name;
+    }
+
+    /**
+     * Add an operation to the shape of this query.
+     *
+     * @param operation Name of operation
+     * @param fields    Fields used by the operation
+     * @param values    Values used by the operation
+     */
+    private void describe(String operation, String fields, Object... values) {
+        shape.append(operation).append('(').append(fields).append(')');
+        Collections.addAll(shapeValues, values);
+    }
+
+    /**
+     * Add a junction of predicates to the shape of this query. Only the kinds of predicates are part of the shape, the
+     * predicates themselves (including their values) are added to {@link #shapeValues}.
+     *
+     * @param operation  Name of junction
+     * @param predicates Joined predicates
+     */
+    private void describePredicates(String operation, Criterion... predicates) {
+        StringBuilder kinds = new StringBuilder();
+        for (Criterion predicate : predicates) {
+            if (kinds.length() > 0) {
+                kinds.append(',');
+            }
+            kinds.append(predicate.getClass().getSimpleName());
+        }
+        describe(operation, kinds.toString(), Arrays.toString(predicates));
+    }
+
+    /**
+     * Add an operation using a sub query to the shape of this query.
+     *
+     * @param operation Name of operation
+     * @param field     Constrained field
+     * @param subQuery  Sub query
+     * @param subField  Selected field of sub query
+     */
+    private void describeSubQuery(String operation, String field, Query<?> subQuery, String subField) {
+        if (subQuery instanceof DefaultQuery) {
+            DefaultQuery<?> defaultSubQuery = (DefaultQuery<?>) subQuery;
+            describe(operation, field + "," + defaultSubQuery.entityClass.getName() + "." + subField + "["
+                    + defaultSubQuery.shape + "]");
+            shapeValues.addAll(defaultSubQuery.shapeValues);
+        } else {
+            describe(operation, field + "," + subField);
+            criteriaExposed = true;
+        }
+        subQueries.add(subQuery);
+    }
+
+    /**
+     * Check whether results of this query can be taken from and put into the {@link QueryCache}. Results depending on
+     * entities written in the current transaction bypass the cache until it is committed.
+     *
+     * @return True if the cache should be used
+     */
+    private boolean useCache() {
+        return cacheable && !criteriaExposed && !Db.isInvalidationPending(getEntityClasses());
+    }
+
+    /**
+     * Build the cache key for the current state of this query.
+     *
+     * @param terminal Description of the executed operation (e.g. list or rowCount)
+     * @return Cache key
+     */
+    private String cacheKey(String terminal) {
+        StringBuilder key = new StringBuilder(entityClass.getName());
+        key.append('|').append(terminal).append('|').append(shape).append('|');
+        for (Object value : shapeValues) {
+            appendKeyValue(key, value);
+        }
+        if (seekRestriction != null) {
+            key.append("|seek:").append(seekRestriction.propertyNames).append(seekRestriction.ascending).append(':');
+            appendKeyValue(key, seekRestriction.values);
+        }
+        key.append('|').append(firstResult).append('|').append(maxRows);
+        return key.toString();
+    }
+
+    /**
+     * Append an unambiguous representation of a restriction value to a cache key.
+     * <p/>
+     * Entities are represented by their class and ID, collections by their elements. Collections with more than
+     * {@link #MAX_KEY_ELEMENTS} elements are represented by their size and a SHA-1 hash of their elements, so large
+     * IN restrictions do not blow up the keys held by the {@link QueryCache}.
+     *
+     * @param key   Cache key to append to
+     * @param value Value to append
+     */
+    private void appendKeyValue(StringBuilder key, Object value) {
+        if (value == null) {
+            key.append("null;");
+        } else if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            StringBuilder elements = collection.size() > MAX_KEY_ELEMENTS ? new StringBuilder() : key;
+            key.append('[');
+            for (Object element : collection) {
+                appendKeyValue(elements, element);
+            }
+            if (elements != key) {
+                key.append(collection.size()).append('#').append(Hashing.sha1().hashString(elements, Charsets.UTF_8));
+            }
+            key.append("];");
+        } else if (value instanceof Date) {
+            key.append(value.getClass().getName()).append(':').append(((Date) value).getTime()).append(';');
+        } else if (Hibernate.getClass(value).isAnnotationPresent(Entity.class)) {
+            Object id = JPA.em().getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(value);
+            key.append(Hibernate.getClass(value).getName()).append('#');
+            appendKeyValue(key, id);
+        } else {
+            String string = value.toString();
+            key.append(value.getClass().getName()).append(':').append(string.length()).append(':').append(string)
+                    .append(';');
+        }
+    }
+
+    /**
+     * Get all entity classes the results of this query depend on: the queried entity, all joined entities and the
+     * entities of all sub queries.
+     *
+     * @return Entity classes
+     */
+    private Set<Class<?>> getEntityClasses() {
+        Set<Class<?>> classes = new HashSet<>();
+        classes.add(entityClass);
+        for (String association : aliases.keySet()) {
+            classes.add(resolveAssociationClass(association));
+        }
+        for (Query<?> subQuery : subQueries) {
+            if (subQuery instanceof DefaultQuery) {
+                classes.addAll(((DefaultQuery<?>) subQuery).getEntityClasses());
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * Resolve the entity class an association path (e.g. creator.tasks) points to.
+     *
+     * @param association Association path relative to the queried entity
+     * @return Associated entity class (or the owning entity class for components)
+     */
+    private Class<?> resolveAssociationClass(String association) {
+        SessionFactoryImplementor factory = ((SessionImplementor) getSession()).getFactory();
+        Class<?> current = entityClass;
+        for (String property : association.split("\\.")) {
+            Type type = factory.getClassMetadata(current).getPropertyType(property);
+            if (type.isCollectionType()) {
+                type = ((CollectionType) type).getElementType(factory);
+            }
+            if (type.isEntityType()) {
+                String entityName = ((EntityType) type).getAssociatedEntityName();
+                current = factory.getClassMetadata(entityName).getMappedClass();
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Get the IDs of the given entities.
+     *
+     * @param entities Entities
+     * @return IDs in the same order
+     */
+    private List<Serializable> getIds(List<T> entities) {
+        ClassMetadata metadata = getClassMetadata();
+        SessionImplementor session = (SessionImplementor) getSession();
+        List<Serializable> ids = new ArrayList<>(entities.size());
+        for (T entity : entities) {
+            ids.add(metadata.getIdentifier(entity, session));
+        }
+        return ids;
+    }
+
+    /**
+     * Load the entities with the given IDs, keeping the order of the IDs. IDs of entities that do not exist
+     * anymore are skipped.
+     *
+     * @param ids IDs of entities to load
+     * @return Entities in the same order
+     */
+    @SuppressWarnings("unchecked")
+    private List<T> loadByIds(List<Serializable> ids) {
+        List<T> result = new ArrayList<>(ids.size());
+        if (ids.isEmpty()) {
+            return result;
+        }
+
+        resolveFetches();
+        Session session = getSession();
+        ClassMetadata metadata = getClassMetadata();
+        Map<Serializable, T> entitiesById = Maps.newHashMapWithExpectedSize(ids.size());
+        SplitCollectionIterator<Serializable> splitIterator = new SplitCollectionIterator<>(MAX_IN_SIZE, ids);
+        while (splitIterator.hasNext()) {
+            Criteria byIds = session.createCriteria(entityClass)
+                    .add(Restrictions.in(metadata.getIdentifierPropertyName(), splitIterator.next()));
+            for (String association : joinFetches) {
+                byIds.setFetchMode(association, FetchMode.JOIN);
+            }
+            preExecute(byIds);
+            for (T entity : (List<T>) list("byIds", byIds)) {
+                entitiesById.put(metadata.getIdentifier(entity, (SessionImplementor) session), entity);
+            }
+        }
+
+        for (Serializable id : ids) {
+            T entity = entitiesById.get(id);
+            if (entity != null) {
+                result.add(entity);
+            }
+        }
+        loadBatchFetches(result);
+        return result;
+    }
+
+    /**
+     * Load the associations of {@link #fetchBatch(String, int)} for the given entities with one query per batch.
+     * <p/>
+     * The entities are managed by the current session, so the fetched associations are attached to them. Like all
+     * other statements of this query, the batch queries pass the {@link QueryProxy} and are recorded in the
+     * {@link QueryMetrics}.
+     *
+     * @param entities Loaded entities
+     */
+    private void loadBatchFetches(List<T> entities) {
+        if (batchFetches.isEmpty() || entities.isEmpty()) {
+            return;
+        }
+
+        Session session = getSession();
+        String idProperty = getClassMetadata().getIdentifierPropertyName();
+        List<Serializable> ids = getIds(entities);
+        for (Map.Entry<String, Integer> fetch : batchFetches.entrySet()) {
+            for (List<Serializable> batch : Lists.partition(ids, fetch.getValue())) {
+                Criteria batchCriteria = session.createCriteria(entityClass)
+                        .add(Restrictions.in(idProperty, batch))
+                        .setFetchMode(fetch.getKey(), FetchMode.JOIN)
+                        .setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+                preExecute(batchCriteria);
+                list("fetchBatch(" + fetch.getKey() + ")", batchCriteria);
+            }
+        }
+    }
+
+    /**
+     * Get the Hibernate type of a (nested) property of the queried entity.
+     *
+     * @param path Property path
+     * @return Property type
+     */
+    private Type getPropertyType(String path) {
+        SessionFactoryImplementor factory = ((SessionImplementor) getSession()).getFactory();
+        ClassMetadata metadata = getClassMetadata();
+        Type type = null;
+        for (String property : path.split("\\.")) {
+            if (metadata == null) {
+                throw new IllegalArgumentException(path + " is not a path of associations");
+            }
+            type = metadata.getPropertyType(property);
+            metadata = type.isEntityType()
+                    ? factory.getClassMetadata(((EntityType) type).getAssociatedEntityName()) : null;
+        }
+        return type;
+    }
+
+    /**
+     * Get the Hibernate session bound to the current JPA entity manager (or the session loading results for the
+     * {@link QueryCache}).
+     *
+     * @return Current session
+     */
+    private Session getSession() {
+        if (snapshotSession != null) {
+            return snapshotSession;
+        }
+        HibernateEntityManager entityManager = JPA.em().unwrap(HibernateEntityManager.class);
+        return entityManager.getSession();
+    }
+
+    /**
+     * Get the Hibernate metadata of the queried entity.
+     *
+     * @return Class metadata
+     */
+    private ClassMetadata getClassMetadata() {
+        ClassMetadata metadata = getSession().getSessionFactory().getClassMetadata(entityClass);
+        if (metadata == null) {
+            throw new IllegalStateException(entityClass.getName() + " is not a mapped entity");
+        }
+        return metadata;
+    }
+
+    /**
+     * Read the value of a field or a path of fields along associations (e.g. <b>creator.name</b>) from the given
+     * entity.
+     *
+     * @param entity Entity to read value from
+     * @param path   Field or path of fields (may contain ID properties)
+     * @return Value or null if the value or an association on the path is null
+     */
+    private Object getPathValue(T entity, String path) {
+        SessionImplementor session = (SessionImplementor) getSession();
+        ClassMetadata metadata = getClassMetadata();
+        Object value = entity;
+        for (String field : path.split("\\.")) {
+            if (value == null) {
+                return null;
+            }
+            if (metadata == null) {
+                throw new IllegalArgumentException("Cannot read " + path + ", " + field + " is not a field of an entity");
+            }
+            if (value instanceof HibernateProxy) {
+                value = ((HibernateProxy) value).getHibernateLazyInitializer().getImplementation();
+            }
+
+            value = field.equals(metadata.getIdentifierPropertyName()) ? metadata.getIdentifier(value, session)
+                    : metadata.getPropertyValue(value, field);
+            metadata = value != null ? session.getFactory().getClassMetadata(Hibernate.getClass(value)) : null;
+        }
+        return value;
+    }
+
+    /**
+     * Get the Hibernate persister of the queried entity.
+     *
+     * @return Entity persister
+     */
+    private AbstractEntityPersister getEntityPersister() {
+        SessionFactoryImplementor factory = ((SessionImplementor) getSession()).getFactory();
+        return (AbstractEntityPersister) factory.getEntityPersister(entityClass.getName());
+    }
+
+    /**
+     * Execute DML statements for all rows matched by the current criteria.
+     * <p/>
+     * Each statement ends with the column referencing the matched IDs (e.g. <b>delete from task where id</b>). The
+     * criteria are rendered to an ID sub select, so a statement becomes
+     * <b>dml IN (SELECT * FROM (criteria SQL))</b>. The extra derived table is needed by databases that do not
+     * allow to select from the modified table in a sub query (e.g. MySQL).
+     *
+     * @param statements DML statements ending with the ID column, executed in the given order
+     * @param value      Value for the only parameter of the last statement (ignored if valueType is null)
+     * @param valueType  Type of value or null if the statements have no parameters
+     * @return Number of rows affected by the last statement
+     */
+    private int executeBulkDml(List<String> statements, Object value, Type valueType) {
+        if (hasOrder) {
+            throw new IllegalStateException("Cannot execute bulk DML when ORDER BY is present");
+        }
+        if (firstResult > 0 || maxRows > 0) {
+            throw new IllegalStateException("Cannot execute bulk DML on a paged query");
+        }
+
+        AbstractEntityPersister persister = getEntityPersister();
+        if (persister.isMultiTable()) {
+            throw new UnsupportedOperationException("Bulk DML is not supported for entities mapped to multiple tables");
+        }
+
+        SessionImplementor session = (SessionImplementor) getSession();
+        CriteriaImpl criteriaImpl;
+        String selectSql;
+        QueryParameters parameters;
+        criteria.setProjection(Projections.id());
+        try {
+            criteriaImpl = (CriteriaImpl) executablePlainCriteria();
+            CriteriaQueryTranslator translator = new CriteriaQueryTranslator(session.getFactory(), criteriaImpl,
+                    persister.getEntityName(), CriteriaQueryTranslator.ROOT_SQL_ALIAS);
+            CriteriaJoinWalker walker = new CriteriaJoinWalker(persister, translator, session.getFactory(),
+                    criteriaImpl, persister.getEntityName(), session.getLoadQueryInfluencers());
+            selectSql = walker.getSQLString();
+            parameters = translator.getQueryParameters();
+        } finally {
+            criteria.setProjection(null);
+        }
+
+        List<PreparedCriterion> prepared = prepare(criteriaImpl);
+        int affectedRows = 0;
+        for (int i = 0; i < statements.size(); i++) {
+            SQLQuery query = getSession().createSQLQuery(statements.get(i) + " in (select * from (" + selectSql
+                    + ") bulk_ids)");
+            query.addSynchronizedEntityClass(entityClass);
+
+            int position = 0;
+            if (valueType != null && i == statements.size() - 1) {
+                query.setParameter(position++, value, valueType);
+            }
+            Object[] values = parameters.getPositionalParameterValues();
+            Type[] types = parameters.getPositionalParameterTypes();
+            for (int j = 0; j < values.length; j++) {
+                query.setParameter(position++, values[j], types[j]);
+            }
+
+            affectedRows = query.executeUpdate();
+        }
+        release(prepared);
+        Db.setCommitNeeded();
+        Db.invalidateAfterCommit(entityClass);
+        return affectedRows;
+    }
+
+    /**
+     * Get the only column of a mapping.
+     *
+     * @param columns Mapped columns
+     * @return Column
+     * @throws java.lang.UnsupportedOperationException if more than one column is mapped (e.g. composite IDs)
+     */
+    private static String getSingleColumn(String[] columns) {
+        if (columns.length != 1) {
+            throw new UnsupportedOperationException("Bulk DML is not supported for composite IDs");
+        }
+        return columns[0];
+    }
+
+    /**
+     * Execute criteria returning a list, recording the execution in the {@link QueryMetrics} if enabled.
+     *
+     * @param terminal           Kind of execution
+     * @param executableCriteria Criteria to execute
+     * @return Result list
+     */
+    private List<?> list(String terminal, Criteria executableCriteria) {
+        List<PreparedCriterion> prepared = prepare(executableCriteria);
+        List<?> result;
+        if (!QueryMetrics.isActive()) {
+            result = executableCriteria.list();
+        } else {
+            long start = System.nanoTime();
+            result = executableCriteria.list();
+            QueryMetrics.getInstance().recordQuery(entityClass, terminal, getShape(), executableCriteria,
+                    System.nanoTime() - start, result.size());
+        }
+        release(prepared);
+        return result;
+    }
+
+    /**
+     * Execute criteria returning a unique result, recording the execution in the {@link QueryMetrics} if enabled.
+     *
+     * @param terminal           Kind of execution
+     * @param executableCriteria Criteria to execute
+     * @return Result or null
+     */
+    private Object uniqueResult(String terminal, Criteria executableCriteria) {
+        List<PreparedCriterion> prepared = prepare(executableCriteria);
+        Object result;
+        if (!QueryMetrics.isActive()) {
+            result = executableCriteria.uniqueResult();
+        } else {
+            long start = System.nanoTime();
+            result = executableCriteria.uniqueResult();
+            QueryMetrics.getInstance().recordQuery(entityClass, terminal, getShape(), executableCriteria,
+                    System.nanoTime() - start, result != null ? 1 : 0);
+        }
+        release(prepared);
+        return result;
+    }
+
+    /**
+     * Prepare all {@link PreparedCriterion}s of this query and its sub queries for an execution of the given criteria.
+     * Criteria other than the ones of this query (e.g. to load entities by ID) need no preparation.
+     *
+     * @param executableCriteria Criteria to execute
+     * @return Prepared criteria to release after the execution
+     */
+    private List<PreparedCriterion> prepare(Criteria executableCriteria) {
+        Session session = getSession();
+        if (executableCriteria != criteria.getExecutableCriteria(session)) {
+            return Collections.emptyList();
+        }
+
+        List<PreparedCriterion> prepared = new ArrayList<>();
+        collectPreparedCriteria(prepared);
+        for (PreparedCriterion criterion : prepared) {
+            criterion.prepare(session);
+        }
+        return prepared;
+    }
+
+    /**
+     * Release prepared criteria after a successful execution. After a failed execution, the criteria are left to
+     * the end of the transaction.
+     *
+     * @param prepared Prepared criteria
+     */
+    private void release(List<PreparedCriterion> prepared) {
+        if (prepared.isEmpty()) {
+            return;
+        }
+
+        Session session = getSession();
+        for (PreparedCriterion criterion : prepared) {
+            criterion.release(session);
+        }
+    }
+
+    /**
+     * Collect the {@link PreparedCriterion}s of this query and its sub queries.
+     *
+     * @param prepared List to add the criteria to
+     */
+    private void collectPreparedCriteria(List<PreparedCriterion> prepared) {
+        Iterator<CriteriaImpl.CriterionEntry> entries =
+                ((CriteriaImpl) criteria.getExecutableCriteria(getSession())).iterateExpressionEntries();
+        while (entries.hasNext()) {
+            Criterion criterion = entries.next().getCriterion();
+            if (criterion instanceof PreparedCriterion) {
+                prepared.add((PreparedCriterion) criterion);
+            }
+        }
+        for (Query<?> subQuery : subQueries) {
+            if (subQuery instanceof DefaultQuery) {
+                ((DefaultQuery<?>) subQuery).collectPreparedCriteria(prepared);
+            }
+        }
+    }
+
+    /**
+     * Get executable criteria with entity transformer (e.g. for {@link #findUnique()}).
+     *
+     * @return Executable criteria
+     */
+    private Criteria executableEntityCriteria() {
+        return executableCriteria(true);
+    }
+
+    /**
+     * Get executable criteria without entity transformer (e.g. for {@link #findRowCount()}).
+     *
+     * @return Executable criteria
+     */
+    private Criteria executablePlainCriteria() {
+        return executableCriteria(false);
+    }
+
+    /**
+     * Get an executable criteria from the current detached criteria. If forRootEntity is true, a
+     * {@link org.hibernate.transform.DistinctRootEntityResultTransformer} will be added (needed if you want to
+     * get entities out of the query).
+     *
+     * @param forRootEntity True, if entities should be returned by the query
+     * @return Executable criteria
+     */
+    private Criteria executableCriteria(boolean forRootEntity) {
+        Criteria executableCriteria = criteria.getExecutableCriteria(getSession());
+
+        if (forRootEntity) {
+            executableCriteria.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+        }
+        if (maxRows > 0) {
+            executableCriteria.setMaxResults(maxRows);
+        }
+        if (firstResult > 0) {
+            executableCriteria.setFirstResult(firstResult);
+        }
+        preExecute(executableCriteria);
+
+        return executableCriteria;
+    }
+
+    /**
+     * Pass executable criteria to the {@link QueryProxy} (if any) before execution.
+     *
+     * @param executableCriteria Executable criteria
+     */
+    private void preExecute(Criteria executableCriteria) {
+        if (proxy != null) {
+            proxy.preExecute(executableCriteria);
+        }
+    }
+
+    /**
+     * Transform subQuery into detached criteria and apply projection if given.
+     *
+     * @param subQuery   Sub query to transform (must not be this)
+     * @param projection Projection to apply (can be null)
+     * @return Detached criteria representing subQuery
+     */
+    private DetachedCriteria criteriaForSubQuery(Query<?> subQuery, Projection projection) {
+        if (subQuery == this) {
+            throw new IllegalArgumentException("SubQuery must be different from main query");
+        }
+
+        DetachedCriteria subQueryCriteria = subQuery.getCriteria();
+        if (projection != null) {
+            subQueryCriteria.setProjection(projection);
+        }
+        return subQueryCriteria;
+    }
+
+    /**
+     * Restriction for keyset paging.
+     * <p/>
+     * Without values it matches all rows, otherwise it matches the rows following the values in the order of the
+     * keyset, e.g. <b>(a &gt; va) OR (a = va AND b &lt; vb) OR (a = va AND b = vb AND id &gt; vid)</b> for
+     * <b>ORDER BY a ASC, b DESC, id ASC</b>.
+     */
+    static class SeekRestriction implements Criterion {
+
+        /**
+         * Properties of the keyset in the order of the query
+         */
+        private final List<String> propertyNames;
+
+        /**
+         * Whether each property is ordered ascending
+         */
+        private final List<Boolean> ascending;
+
+        /**
+         * Values of the last row of the previous page (exclusive) or null
+         */
+        private final List<Object> values;
+
+        /**
+         * Criterion to delegate to
+         */
+        private final Criterion criterion;
+
+        /**
+         * Create a new restriction.
+         *
+         * @param propertyNames Properties of the keyset
+         * @param ascending     Whether each property is ordered ascending
+         * @param values        Non-null values of the last row of the previous page or null to match all rows
+         */
+        SeekRestriction(List<String> propertyNames, List<Boolean> ascending, List<Object> values) {
+            this.propertyNames = propertyNames;
+            this.ascending = ascending;
+            this.values = values;
+            this.criterion = values == null ? Restrictions.sqlRestriction("1=1") : after();
+        }
+
+        @Override
+        public String toSqlString(Criteria criteria, CriteriaQuery criteriaQuery) throws HibernateException {
+            return criterion.toSqlString(criteria, criteriaQuery);
+        }
+
+        @Override
+        public TypedValue[] getTypedValues(Criteria criteria, CriteriaQuery criteriaQuery) throws HibernateException {
+            return criterion.getTypedValues(criteria, criteriaQuery);
+        }
+
+        @Override
+        public String toString() {
+            return criterion.toString();
+        }
+
+        /**
+         * Build the criterion matching the rows after the values.
+         *
+         * @return Disjunction of one term per property
+         */
+        private Criterion after() {
+            Disjunction after = Restrictions.disjunction();
+            for (int i = 0; i < propertyNames.size(); i++) {
+                Conjunction term = Restrictions.conjunction();
+                for (int j = 0; j < i; j++) {
+                    term.add(Restrictions.eq(propertyNames.get(j), values.get(j)));
+                }
+                term.add(ascending.get(i) ? Restrictions.gt(propertyNames.get(i), values.get(i))
+                        : Restrictions.lt(propertyNames.get(i), values.get(i)));
+                after.add(term);
+            }
+            return after;
         }
-        return subQueryCriteria;
     }
 
     /**
@@ -570,7 +2000,7 @@ public class DefaultQuery<T> implements Query<T> {
 
         @Override
         public Collection<T> next() {
-            int nextBatchSize = Math.min(batchSize, numValues);
+            int nextBatchSize = Math.min(batchSize, numValues - numProcessed);
             List<T> nextBatch = new ArrayList<>(nextBatchSize);
 
             for (int i = 0; i < nextBatchSize; i++) {
@@ -1,14 +1,31 @@
 package com.play4jpa.jpa.models;
 
+import com.play4jpa.jpa.db.Db;
 import com.play4jpa.jpa.query.Query;
+import com.play4jpa.jpa.query.QueryProxy;
+import com.play4jpa.jpa.query.QueryTemplate;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import play.Logger;
+import play.db.jpa.JPA;
 
+import javax.persistence.EntityManager;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Play Ebean like implementation of Finder for Hibernate.
  * <p/>
  * To execute complex queries, get an empty query by calling {@link #query()} and adding restrictions.
  * See {@link com.play4jpa.jpa.query.Query} for details.
+ * <p/>
+ * To write many entities at once, use {@link #saveAll(Iterable)}, {@link #updateAll(Iterable)} and
+ * {@link #deleteAll(Iterable)}. They write each entity like {@link Model#save()}, {@link Model#update()} and
+ * {@link Model#delete()} and flush in batches. By default, written entities are detached after each flush.
+ * <b>Set hibernate.jdbc.batch_size in your persistence.xml</b>, otherwise each flush sends one statement per entity
+ * (a warning is logged on the first bulk write).
  *
  * @param <I> Type of entity ID
  * @param <T> Type of queried entity
@@ -17,11 +34,26 @@ import java.util.List;
  */
 public final class Finder<I, T extends Model<T>> {
 
+    /**
+     * Indicates whether the missing JDBC batch size was already reported
+     */
+    private static final AtomicBoolean jdbcBatchSizeWarned = new AtomicBoolean();
+
     /**
      * {@link java.lang.Class} of queried entity.
      */
     private final Class<T> entityClass;
 
+    /**
+     * Instance of queried entity preparing new queries, created on first use if the entity overrides a query hook.
+     */
+    private volatile QueryProxy<T> proxy;
+
+    /**
+     * Indicates whether {@link #proxy} was resolved.
+     */
+    private volatile boolean proxyResolved = false;
+
     /**
      * Create a new finder for the given ID and entity class.
      *
@@ -72,10 +104,223 @@ public final class Finder<I, T extends Model<T>> {
 
     /**
      * Get a new query to add more complex restrictions.
+     * <p/>
+     * If the entity overrides {@link Model#prepareQuery(Query)}, the new query is passed to it before it is returned.
      *
      * @return New query
      */
     public Query<T> query() {
-        return new DefaultQuery<>(entityClass);
+        QueryProxy<T> queryProxy = getProxy();
+        DefaultQuery<T> query = new DefaultQuery<>(entityClass, queryProxy);
+        if (queryProxy != null) {
+            queryProxy.prepareQuery(query);
+        }
+        return query;
+    }
+
+    /**
+     * Get an instance of the queried entity to prepare new queries (see {@link Model#prepareQuery(Query)}) or null if
+     * the entity overrides neither {@link Model#prepareQuery(Query)} nor {@link Model#preExecute(org.hibernate.Criteria)}.
+     * <p/>
+     * The instance is created once by the no-arg constructor of the entity (which may be private) and then shared by
+     * all queries of this finder on all threads. So the constructor must not have side effects (e.g. register the
+     * instance somewhere) and the hooks must not depend on or modify state of the instance.
+     *
+     * @return Query proxy or null
+     */
+    private QueryProxy<T> getProxy() {
+        if (!proxyResolved) {
+            if (Model.overridesQueryHooks(entityClass)) {
+                try {
+                    Constructor<T> constructor = entityClass.getDeclaredConstructor();
+                    constructor.setAccessible(true);
+                    proxy = constructor.newInstance();
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("Could not create query proxy for " + entityClass.getName()
+                            + ", it needs a no-arg constructor", e);
+                }
+            }
+            proxyResolved = true;
+        }
+        return proxy;
+    }
+
+    /**
+     * Compile a reusable query template. Keep the template (e.g. in a static field) and execute it with
+     * {@link QueryTemplate#bind(String, Object)}.
+     *
+     * @param definition Definition of the query shape
+     * @return Compiled template
+     */
+    public QueryTemplate<T> template(QueryTemplate.Definition<T> definition) {
+        return new QueryTemplate<>(entityClass, definition);
+    }
+
+    /**
+     * Insert all given entities with {@link Model#save()}, flushing and detaching every {@link Db#getBatchSize()}
+     * entities.
+     * <p/>
+     * <b>The given entities are detached afterwards</b>, use {@link #saveAll(Iterable, int, boolean)} to keep them
+     * managed.
+     *
+     * @param entities Entities to insert
+     * @see #saveAll(Iterable, int, boolean)
+     */
+    public void saveAll(Iterable<T> entities) {
+        saveAll(entities, Db.getBatchSize(), true);
+    }
+
+    /**
+     * Insert all given entities with {@link Model#save()}.
+     * <p/>
+     * Every batchSize entities, the entity manager is flushed, so the inserts are sent as JDBC batches. With detach,
+     * the flushed entities are detached as well, so the persistence context does not grow with the number of
+     * entities. <b>Detached entities are no longer managed: later changes to them are not written and lazy
+     * associations cannot be loaded anymore.</b>
+     *
+     * @param entities  Entities to insert
+     * @param batchSize Number of entities to write before flushing
+     * @param detach    True to detach the given entities after flushing
+     * @throws java.lang.IllegalStateException if an entity is already contained in EM
+     */
+    public void saveAll(Iterable<T> entities, int batchSize, boolean detach) {
+        writeAll(entities, batchSize, detach, BulkOperation.SAVE);
+    }
+
+    /**
+     * Update all given entities with {@link Model#update()}, flushing and detaching every {@link Db#getBatchSize()}
+     * entities.
+     * <p/>
+     * <b>The given entities are detached afterwards</b>, use {@link #updateAll(Iterable, int, boolean)} to keep them
+     * managed.
+     *
+     * @param entities Entities to update
+     * @see #updateAll(Iterable, int, boolean)
+     */
+    public void updateAll(Iterable<T> entities) {
+        updateAll(entities, Db.getBatchSize(), true);
+    }
+
+    /**
+     * Update all given entities with {@link Model#update()}.
+     * <p/>
+     * Every batchSize entities, the entity manager is flushed, so the updates are sent as JDBC batches. With detach,
+     * the flushed entities are detached as well (see {@link #saveAll(Iterable, int, boolean)}), <b>including the
+     * caller's instances</b>.
+     *
+     * @param entities  Entities to update
+     * @param batchSize Number of entities to write before flushing
+     * @param detach    True to detach the given entities after flushing
+     * @throws java.lang.IllegalStateException if an entity is not contained in EM
+     */
+    public void updateAll(Iterable<T> entities, int batchSize, boolean detach) {
+        writeAll(entities, batchSize, detach, BulkOperation.UPDATE);
+    }
+
+    /**
+     * Delete all given entities with {@link Model#delete()}, flushing every {@link Db#getBatchSize()} entities.
+     * <p/>
+     * To delete entities without loading them, use {@link com.play4jpa.jpa.query.Query#delete()}.
+     *
+     * @param entities Entities to delete
+     * @see #deleteAll(Iterable, int)
+     */
+    public void deleteAll(Iterable<T> entities) {
+        deleteAll(entities, Db.getBatchSize());
+    }
+
+    /**
+     * Delete all given entities with {@link Model#delete()}.
+     * <p/>
+     * Every batchSize entities, the entity manager is flushed. Deleted entities are removed from the persistence
+     * context by the flush anyway.
+     *
+     * @param entities  Entities to delete
+     * @param batchSize Number of entities to write before flushing
+     */
+    public void deleteAll(Iterable<T> entities, int batchSize) {
+        writeAll(entities, batchSize, false, BulkOperation.DELETE);
+    }
+
+    /**
+     * Write all entities with the given operation, flushing every batchSize entities.
+     *
+     * @param entities  Entities to write
+     * @param batchSize Number of entities to write before flushing
+     * @param detach    True to detach written entities after flushing
+     * @param operation Write operation
+     */
+    private void writeAll(Iterable<T> entities, int batchSize, boolean detach, BulkOperation operation) {
+        if (entities == null) {
+            throw new IllegalArgumentException("entities must not be null");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be >= 1");
+        }
+
+        EntityManager em = JPA.em();
+        checkJdbcBatchSize(em);
+        List<T> batch = new ArrayList<>(batchSize);
+        for (T entity : entities) {
+            switch (operation) {
+                case SAVE:
+                    entity.save();
+                    break;
+                case UPDATE:
+                    entity.update();
+                    break;
+                case DELETE:
+                    entity.delete();
+                    break;
+            }
+
+            batch.add(entity);
+            if (batch.size() == batchSize) {
+                flushBatch(em, batch, detach);
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            flushBatch(em, batch, detach);
+        }
+    }
+
+    /**
+     * Log a warning on the first bulk write if Hibernate does not send JDBC batches.
+     *
+     * @param em Current entity manager
+     */
+    private static void checkJdbcBatchSize(EntityManager em) {
+        SessionFactoryImplementor factory = (SessionFactoryImplementor) em.unwrap(Session.class).getSessionFactory();
+        if (factory.getSettings().getJdbcBatchSize() < 2 && !jdbcBatchSizeWarned.getAndSet(true)) {
+            Logger.warn("hibernate.jdbc.batch_size is not set, bulk writes send one statement per entity."
+                    + " Set it to {} in your persistence.xml", Db.getBatchSize());
+        }
+    }
+
+    /**
+     * Flush the entity manager and detach the written entities if requested.
+     *
+     * @param em     Current entity manager
+     * @param batch  Written entities (cleared afterwards)
+     * @param detach True to detach the written entities
+     */
+    private void flushBatch(EntityManager em, List<T> batch, boolean detach) {
+        em.flush();
+        if (detach) {
+            for (T entity : batch) {
+                if (em.contains(entity)) {
+                    em.detach(entity);
+                }
+            }
+        }
+        batch.clear();
+    }
+
+    /**
+     * Write operations supported for bulk writes.
+     */
+    private enum BulkOperation {
+        SAVE, UPDATE, DELETE
     }
 }
@@ -26,7 +26,8 @@ public abstract class Model<T extends Model<T>> implements QueryProxy<T>, Serial
     /**
      * Update this Model.
      * <p/>
-     * Call only if the entity is already contained in JPA entity manager (EM).
+     * Call only if the entity is already contained in JPA entity manager (EM). Changes of managed entities are
+     * written on flush, so no merge is needed.
      *
      * @throws java.lang.IllegalStateException if the entity is not contained in EM
      */
@@ -38,8 +39,8 @@ public abstract class Model<T extends Model<T>> implements QueryProxy<T>, Serial
         log.trace("Running preUpdate() on: {}", this.toString());
         preUpdate();
         log.trace("preUpdate() finished");
-        Db.em().merge(this);
         Db.setCommitNeeded();
+        Db.invalidateAfterCommit(getClass());
     }
 
     /**
@@ -59,6 +60,7 @@ public abstract class Model<T extends Model<T>> implements QueryProxy<T>, Serial
         log.trace("preSave() finished");
         Db.em().persist(this);
         Db.setCommitNeeded();
+        Db.invalidateAfterCommit(getClass());
     }
 
     /**
@@ -71,6 +73,7 @@ public abstract class Model<T extends Model<T>> implements QueryProxy<T>, Serial
 
         play.db.jpa.JPA.em().remove(this);
         Db.setCommitNeeded();
+        Db.invalidateAfterCommit(getClass());
     }
 
     /**
@@ -90,6 +93,43 @@ public abstract class Model<T extends Model<T>> implements QueryProxy<T>, Serial
         // Override in subclass
     }
 
+    /**
+     * Check whether a model class overrides {@link #prepareQuery(Query)} or {@link #preExecute(Criteria)}, so new
+     * queries of the class need an instance as {@link QueryProxy}.
+     *
+     * @param modelClass Model class
+     * @return True if a query hook is overridden
+     */
+    public static boolean overridesQueryHooks(Class<?> modelClass) {
+        return overrides(modelClass, "prepareQuery", Query.class) || overrides(modelClass, "preExecute", Criteria.class);
+    }
+
+    /**
+     * Check whether a query proxy is a model using the default (empty) {@link #preExecute(Criteria)}.
+     *
+     * @param proxy Query proxy
+     * @return True if the proxy adds no restrictions in preExecute
+     */
+    static boolean inheritsPreExecute(QueryProxy<?> proxy) {
+        return proxy instanceof Model && !overrides(proxy.getClass(), "preExecute", Criteria.class);
+    }
+
+    /**
+     * Check whether a model class overrides a public method of this class.
+     *
+     * @param modelClass    Model class
+     * @param name          Method name
+     * @param parameterType Type of the only parameter
+     * @return True if the method is not declared by this class
+     */
+    private static boolean overrides(Class<?> modelClass, String name, Class<?> parameterType) {
+        try {
+            return modelClass.getMethod(name, parameterType).getDeclaringClass() != Model.class;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     /**
      * Called before an existing model is updated in the database.
      * <p/>
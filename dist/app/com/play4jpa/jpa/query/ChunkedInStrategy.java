@@ -0,0 +1,113 @@
+package com.play4jpa.jpa.query;
+
+import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.Disjunction;
+import org.hibernate.criterion.Junction;
+import org.hibernate.criterion.Restrictions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * {@link InStrategy} rendering values as IN lists of at most maxChunkSize values each, combined by OR (IN) or AND
+ * (NOT IN).
+ * <p/>
+ * Each IN list is padded (by repeating its last value) to the next bucket size (powers of two up to maxChunkSize),
+ * so only a few distinct SQL statements are generated and prepared statements can be reused for collections of
+ * different sizes.
+ *
+ * @author agent
+ */
+public class ChunkedInStrategy implements InStrategy {
+
+    /**
+     * Default maximum number of values in a single IN list
+     */
+    public static final int DEFAULT_MAX_CHUNK_SIZE = 500;
+
+    /**
+     * Maximum number of values in a single IN list
+     */
+    private final int maxChunkSize;
+
+    /**
+     * Create a new strategy with {@link #DEFAULT_MAX_CHUNK_SIZE}.
+     */
+    public ChunkedInStrategy() {
+        this(DEFAULT_MAX_CHUNK_SIZE);
+    }
+
+    /**
+     * Create a new strategy.
+     *
+     * @param maxChunkSize Maximum number of values in a single IN list
+     */
+    public ChunkedInStrategy(int maxChunkSize) {
+        if (maxChunkSize < 1) {
+            throw new IllegalArgumentException("maxChunkSize must be >= 1");
+        }
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    @Override
+    public Criterion in(String propertyName, Collection<?> values, boolean negated) {
+        if (values.size() <= maxChunkSize) {
+            return chunkCriterion(propertyName, pad(new ArrayList<Object>(values)), negated);
+        }
+
+        Junction junction = negated ? Restrictions.conjunction() : Restrictions.disjunction();
+        Iterator<?> valueIterator = values.iterator();
+        while (valueIterator.hasNext()) {
+            List<Object> chunk = new ArrayList<>(maxChunkSize);
+            while (valueIterator.hasNext() && chunk.size() < maxChunkSize) {
+                chunk.add(valueIterator.next());
+            }
+            junction.add(chunkCriterion(propertyName, pad(chunk), negated));
+        }
+        return junction;
+    }
+
+    /**
+     * Get the bucket size an IN list with the given number of values is padded to.
+     *
+     * @param size Number of values (1..maxChunkSize)
+     * @return Bucket size
+     */
+    public int bucketSize(int size) {
+        int bucket = Integer.highestOneBit(Math.max(size, 1));
+        if (bucket < size) {
+            bucket <<= 1;
+        }
+        return Math.min(bucket, maxChunkSize);
+    }
+
+    /**
+     * Pad a chunk to its bucket size by repeating the last value.
+     *
+     * @param chunk Chunk to pad
+     * @return chunk (for method chaining)
+     */
+    private List<Object> pad(List<Object> chunk) {
+        Object last = chunk.get(chunk.size() - 1);
+        int bucketSize = bucketSize(chunk.size());
+        while (chunk.size() < bucketSize) {
+            chunk.add(last);
+        }
+        return chunk;
+    }
+
+    /**
+     * Create the criterion for a single chunk.
+     *
+     * @param propertyName Property to constrain
+     * @param chunk        Values of chunk
+     * @param negated      True for NOT IN
+     * @return Criterion
+     */
+    private Criterion chunkCriterion(String propertyName, List<Object> chunk, boolean negated) {
+        Criterion in = Restrictions.in(propertyName, chunk);
+        return negated ? Restrictions.not(in) : in;
+    }
+}
@@ -0,0 +1,27 @@
+package com.play4jpa.jpa.query;
+
+import org.hibernate.criterion.Criterion;
+
+import java.util.Collection;
+
+/**
+ * Strategy to restrict a property to (or exclude) a collection of values, used by
+ * {@link Query#in(String, java.util.Collection)} and {@link Query#notIn(String, java.util.Collection)}.
+ * <p/>
+ * Small collections are best rendered as plain IN lists (see {@link ChunkedInStrategy}), huge collections as a join
+ * against a temporary table (see {@link TempTableInStrategy}). Use {@link ThresholdInStrategy} to combine both.
+ *
+ * @author agent
+ */
+public interface InStrategy {
+
+    /**
+     * Create a criterion restricting the given property to the given values.
+     *
+     * @param propertyName Property to constrain (already alialized)
+     * @param values       Non-empty collection of values
+     * @param negated      True for NOT IN, false for IN
+     * @return Criterion to add to the query
+     */
+    Criterion in(String propertyName, Collection<?> values, boolean negated);
+}
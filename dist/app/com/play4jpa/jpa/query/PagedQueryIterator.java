@@ -1,5 +1,8 @@
 package com.play4jpa.jpa.query;
 
+import play.db.jpa.JPA;
+
+import javax.persistence.EntityManager;
 import java.util.Iterator;
 import java.util.List;
 
@@ -8,6 +11,12 @@ import java.util.List;
  * <p/>
  * This will load entities in batches of the given page size. <b>Be sure to always use {@link #hasNext()} to ensure
  * that there are populated results available.</b>
+ * <p/>
+ * Pages are either fetched by offset (see {@link Query#findPage(int, int)}) or - if a seek field is given - by keyset
+ * paging (see {@link Query#findPageAfter(String, Object, int)}), which does not re-scan previous rows for each page.
+ * <p/>
+ * For walks over large tables, use {@link #setDetachPages(boolean)} or {@link #setClearPages(boolean)} to keep the
+ * persistence context from growing.
  *
  * @param <T> Type of queried entity
  * @author Jens (mail@jensjaeger.com)
@@ -25,6 +34,21 @@ public final class PagedQueryIterator<T> implements Iterator<T> {
      */
     private final int rowsPerPage;
 
+    /**
+     * Field for keyset paging or null for offset paging
+     */
+    private final String seekField;
+
+    /**
+     * Indicates whether finished pages are detached from the persistence context
+     */
+    private boolean detachPages = false;
+
+    /**
+     * Indicates whether the persistence context is cleared after each finished page
+     */
+    private boolean clearPages = false;
+
     /**
      * Number of current page
      */
@@ -47,6 +71,17 @@ public final class PagedQueryIterator<T> implements Iterator<T> {
      * @param rowsPerPage Number of results per page
      */
     public PagedQueryIterator(Query<T> query, int rowsPerPage) {
+        this(query, null, rowsPerPage);
+    }
+
+    /**
+     * Create a new paged iterator for wrapping the given query and using keyset paging on the given field.
+     *
+     * @param query       Query to page results for
+     * @param seekField   Field to seek on (non-null, ties are ordered by ID) or null for offset paging
+     * @param rowsPerPage Number of results per page
+     */
+    public PagedQueryIterator(Query<T> query, String seekField, int rowsPerPage) {
         if (query == null) {
             throw new IllegalArgumentException("query must not be null");
         }
@@ -55,10 +90,50 @@ public final class PagedQueryIterator<T> implements Iterator<T> {
         }
 
         this.query = query;
+        this.seekField = seekField;
         this.rowsPerPage = rowsPerPage;
         this.pageNo = 1;
     }
 
+    /**
+     * Get the field used for keyset paging.
+     *
+     * @return Seek field or null if offset paging is used
+     */
+    public String getSeekField() {
+        return seekField;
+    }
+
+    /**
+     * Set whether the entities of a page are detached from the persistence context once the next page is loaded.
+     * <p/>
+     * Pending changes are flushed before detaching if a transaction is active. Only the entities of the page itself are
+     * detached, entities loaded with them (e.g. eagerly fetched associations) stay managed unless the association
+     * cascades detach. Use {@link #setClearPages(boolean)} to get rid of them as well.
+     *
+     * @param detachPages True to detach finished pages
+     * @return this (for method chaining)
+     */
+    public PagedQueryIterator<T> setDetachPages(boolean detachPages) {
+        this.detachPages = detachPages;
+        return this;
+    }
+
+    /**
+     * Set whether the persistence context is cleared once the next page is loaded.
+     * <p/>
+     * Pending changes are flushed before clearing if a transaction is active. Unlike {@link #setDetachPages(boolean)},
+     * this detaches the associations loaded with a page as well, but also <b>all other entities</b> of the current
+     * entity manager, so entities loaded before the iteration must not be used afterwards.
+     *
+     * @param clearPages True to clear the persistence context after each finished page
+     * @return this (for method chaining)
+     */
+    public PagedQueryIterator<T> setClearPages(boolean clearPages) {
+        this.clearPages = clearPages;
+        return this;
+    }
+
     /**
      * Get current number of rows per page.
      *
@@ -85,6 +160,9 @@ public final class PagedQueryIterator<T> implements Iterator<T> {
      * @param pageNo Requested page number
      */
     public void setPageNo(int pageNo) {
+        if (seekField != null && pageNo != 1) {
+            throw new UnsupportedOperationException("Keyset paging can only be restarted at page 1");
+        }
         this.pageNo = pageNo;
         pageResults = null;
         pageResultsIterator = null;
@@ -128,8 +206,61 @@ public final class PagedQueryIterator<T> implements Iterator<T> {
      * Load results for the current page.
      */
     private void loadPageResults() {
-        pageResults = query.findPage(pageNo, rowsPerPage);
+        List<T> finishedPage = pageResults;
+        List<T> results = fetchPage(pageNo, lastOf(finishedPage));
+
+        if ((detachPages || clearPages) && finishedPage != null) {
+            detach(finishedPage);
+        }
+
+        pageResults = results;
         pageResultsIterator = pageResults.iterator();
     }
 
+    /**
+     * Fetch the results of a single page.
+     *
+     * @param page Number of page (used for offset paging)
+     * @param last Last entity of previous page (used for keyset paging)
+     * @return Page results
+     */
+    private List<T> fetchPage(int page, T last) {
+        if (seekField != null) {
+            return query.findPageAfter(seekField, last, rowsPerPage);
+        }
+        return query.findPage(page, rowsPerPage);
+    }
+
+    /**
+     * Detach all entities of a finished page from the current entity manager, or clear it if requested.
+     *
+     * @param page Entities to detach
+     */
+    private void detach(List<T> page) {
+        EntityManager em = JPA.em();
+        if (em.getTransaction().isActive()) {
+            em.flush();
+        }
+        if (clearPages) {
+            em.clear();
+            return;
+        }
+        for (T entity : page) {
+            em.detach(entity);
+        }
+    }
+
+    /**
+     * Get the last entity of a page.
+     *
+     * @param page Page results (may be null)
+     * @return Last entity or null if there is none
+     */
+    private T lastOf(List<T> page) {
+        if (page == null || page.isEmpty()) {
+            return null;
+        }
+        return page.get(page.size() - 1);
+    }
+
 }
@@ -0,0 +1,31 @@
+package com.play4jpa.jpa.query;
+
+import org.hibernate.Session;
+import org.hibernate.criterion.Criterion;
+
+/**
+ * Criterion that needs database work around each execution of the statement containing it, e.g. filling a temporary
+ * table (see {@link TempTableInStrategy}).
+ * <p/>
+ * {@link com.play4jpa.jpa.models.DefaultQuery} calls {@link #prepare(Session)} right before and
+ * {@link #release(Session)} right after each execution, so queries served from the {@link QueryCache} or never
+ * executed do not touch the database.
+ *
+ * @author agent
+ */
+public interface PreparedCriterion extends Criterion {
+
+    /**
+     * Prepare the database for an execution of the statement containing this criterion.
+     *
+     * @param session Session executing the statement
+     */
+    void prepare(Session session);
+
+    /**
+     * Clean up after the statement containing this criterion was executed successfully.
+     *
+     * @param session Session that executed the statement
+     */
+    void release(Session session);
+}
@@ -2,9 +2,11 @@ package com.play4jpa.jpa.query;
 
 import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.DetachedCriteria;
+import play.libs.F;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Play Ebean like interface of a Query object for Hibernate.
@@ -185,6 +187,8 @@ public interface Query<T> {
 
     /**
      * Add IN constraint for single field value (field = value1 || field = value2 ...).
+     * <p/>
+     * The values are rendered by the {@link InStrategy} of this query (see {@link #setInStrategy(InStrategy)}).
      *
      * @param field  Field to constrain
      * @param values Constraint values
@@ -207,6 +211,8 @@ public interface Query<T> {
 
     /**
      * Add NOT IN constraint for single field value (field != value1 && field != value2 ...).
+     * <p/>
+     * The values are rendered by the {@link InStrategy} of this query (see {@link #setInStrategy(InStrategy)}).
      *
      * @param field  Field to constrain
      * @param values Constraint values
@@ -318,6 +324,77 @@ public interface Query<T> {
      */
     List<T> findPage(int page, int pageSize);
 
+    /**
+     * Select the given fields of all entities matching the current query, without loading the entities.
+     * <p/>
+     * Fields may be paths of associations (e.g. <b>creator.name</b>), associations not joined yet are left-joined for
+     * the projection only, so the query itself is not changed. The rows are read-only and not registered in the
+     * persistence context. {@link #setFirstResult(int)} and {@link #setMaxRows(int)} are applied to the rows.
+     *
+     * @param fields Fields to select
+     * @return One array per row with the values in the order of fields
+     */
+    List<Object[]> select(String... fields);
+
+    /**
+     * Select the given fields of all entities matching the current query as maps (see {@link #select(String...)}).
+     *
+     * @param fields Fields to select
+     * @return One map per row from field to value, in the order of fields
+     */
+    List<Map<String, Object>> selectMaps(String... fields);
+
+    /**
+     * Select the given fields of all entities matching the current query and pass them to a constructor of the
+     * given class (see {@link #select(String...)}).
+     * <p/>
+     * The constructor must have one parameter per field, in the order of fields, accepting the mapped types of the
+     * fields. The constructor is chosen once from these types: if several constructors accept them, the most specific
+     * one is used. Primitive parameters do not accept null values.
+     *
+     * @param resultClass Class of results (e.g. a DTO)
+     * @param fields      Fields to select
+     * @param <D>         Type of results
+     * @return One result per row
+     * @throws java.lang.IllegalArgumentException if no constructor or no single most specific one accepts the types
+     */
+    <D> List<D> select(Class<D> resultClass, String... fields);
+
+    /**
+     * Find all entities matching the current query on the {@link com.play4jpa.jpa.db.JdbcExecutor}.
+     * <p/>
+     * The transaction of the current thread is carried to the executing thread. Only transactions kept open until the
+     * promise is redeemed are allowed, so this must be called inside
+     * {@link com.play4jpa.jpa.db.Db#withTxPromise(String, boolean, play.libs.F.Function0)} or in a callback running in
+     * its {@link com.play4jpa.jpa.db.Db#txExecutionContext()}. The transaction must not be used by other threads
+     * meanwhile.
+     *
+     * @return Promise of all matching Entities
+     * @throws java.lang.IllegalStateException if not called in a transaction of
+     *                                         {@link com.play4jpa.jpa.db.Db#withTxPromise(String, boolean, play.libs.F.Function0)}
+     */
+    F.Promise<List<T>> findListAsync();
+
+    /**
+     * Find unique entity for current query on the {@link com.play4jpa.jpa.db.JdbcExecutor}.
+     * See {@link #findListAsync()} for the transaction handling.
+     *
+     * @return Promise of unique Entity
+     * @throws java.lang.IllegalStateException if not called in a transaction of
+     *                                         {@link com.play4jpa.jpa.db.Db#withTxPromise(String, boolean, play.libs.F.Function0)}
+     */
+    F.Promise<T> findUniqueAsync();
+
+    /**
+     * Get the result count of the current query on the {@link com.play4jpa.jpa.db.JdbcExecutor}.
+     * See {@link #findListAsync()} for the transaction handling.
+     *
+     * @return Promise of number of results
+     * @throws java.lang.IllegalStateException if not called in a transaction of
+     *                                         {@link com.play4jpa.jpa.db.Db#withTxPromise(String, boolean, play.libs.F.Function0)}
+     */
+    F.Promise<Long> findRowCountAsync();
+
     /**
      * Find all entities matching the current query and return them in a paged fashion.
      * See {@link com.play4jpa.jpa.query.PagedQueryIterator} for details.
@@ -343,6 +420,77 @@ public interface Query<T> {
      */
     PagedQueryIterator<T> findPagedIterator(int startPage, int pageSize);
 
+    /**
+     * Find all entities matching the current query and return them in a paged fashion using keyset (seek) paging on
+     * the entity ID.
+     * <p/>
+     * This is the same as using {@link #findSeekIterator(String, int)} with the name of the ID property.
+     *
+     * @param pageSize Size of a single page
+     * @return Paged iterator
+     */
+    PagedQueryIterator<T> findSeekIterator(int pageSize);
+
+    /**
+     * Find all entities matching the current query and return them in a paged fashion using keyset (seek) paging on
+     * the given field. Instead of an offset, each page is restricted to the rows following the last row of the previous
+     * page, so fetching a page does not re-scan all previous rows.
+     * <p/>
+     * The keyset consists of the fields the query is ordered by, then field and the ID, each one only once. Rows with
+     * equal values of field are thus ordered by ID, e.g. pages of an unordered query are restricted to
+     * <b>(field, id) &gt; (last value, last ID)</b>. An existing order is kept, including its directions.
+     * <p/>
+     * <b>All fields of the keyset must be non-null for every row.</b> Rows with null values would be skipped, so an
+     * {@link IllegalStateException} is thrown when a page ends with such a row.
+     *
+     * @param field    Field to seek on
+     * @param pageSize Size of a single page
+     * @return Paged iterator
+     */
+    PagedQueryIterator<T> findSeekIterator(String field, int pageSize);
+
+    /**
+     * Find the next pageSize entities following the given entity in the order of the query, field and the ID.
+     * See {@link #findSeekIterator(String, int)} for details.
+     * <p/>
+     * The restriction and the orders on field and the ID only apply to this page, the query itself is not changed.
+     * <p/>
+     * <b>Will override any values set by {@link #setFirstResult(int)} and {@link #setMaxRows(int)}!</b>
+     *
+     * @param field    Field to seek on
+     * @param last     Last entity of the previous page or null to get the first page
+     * @param pageSize Size of a single page
+     * @return All matching Entities on requested page
+     * @throws java.lang.IllegalStateException if a field of the keyset is null for last
+     */
+    List<T> findPageAfter(String field, T last, int pageSize);
+
+    /**
+     * Delete all entities matching the current query with a single DML statement without loading them.
+     * <p/>
+     * Rows of collection tables of the entity (e.g. join tables of many-to-many associations) are deleted first.
+     * The statements bypass the persistence context: <b>no preDelete() hooks are called, no cascades are applied
+     * and already loaded entities are not removed from the persistence context.</b>
+     *
+     * @return Number of deleted rows
+     * @throws java.lang.IllegalStateException if the query is ordered or paged
+     */
+    int delete();
+
+    /**
+     * Set field to value for all entities matching the current query with a single DML statement without loading
+     * them.
+     * <p/>
+     * The statement bypasses the persistence context: <b>no preUpdate() hooks are called and already loaded
+     * entities are not refreshed.</b>
+     *
+     * @param field Field of the queried entity to update (must be mapped to a single column)
+     * @param value New value
+     * @return Number of updated rows
+     * @throws java.lang.IllegalStateException if the query is ordered or paged
+     */
+    int update(String field, Object value);
+
     /**
      * SELECT MAX(field) FROM table_name;
      *
@@ -360,6 +508,98 @@ public interface Query<T> {
      */
     DetachedCriteria getCriteria();
 
+    /**
+     * Set the strategy used to render collections of {@link #in(String, java.util.Collection)} and
+     * {@link #notIn(String, java.util.Collection)} added afterwards.
+     *
+     * @param inStrategy Strategy or null to use the default strategy
+     * @return this (for method chaining)
+     */
+    Query<T> setInStrategy(InStrategy inStrategy);
+
+    /**
+     * Get the strategy used to render collections of IN restrictions.
+     *
+     * @return Current strategy
+     */
+    InStrategy getInStrategy();
+
+    /**
+     * Set whether results of this query are cached in the {@link com.play4jpa.jpa.query.QueryCache}.
+     * <p/>
+     * Entities found by a cacheable query are <b>detached, read-only snapshots shared by all callers</b>: they are
+     * loaded in a temporary session (within the current transaction), and a cache hit returns the same instances
+     * without any statement. Do not modify them, and fetch the associations you need (see {@link #fetch(String)} and
+     * {@link #fetchBatch(String, int)}), as lazy associations cannot be loaded later. Counts are cached as numbers.
+     * <p/>
+     * Cached results are invalidated whenever one of the queried or joined entity classes is written via
+     * {@link com.play4jpa.jpa.models.Model}, {@link com.play4jpa.jpa.models.Finder} or a bulk DML of a query.
+     * Restrictions added by {@link QueryProxy#prepareQuery(Query)} are part of the cache key. <b>Restrictions added
+     * directly to {@link #getCriteria()} or by {@link QueryProxy#preExecute(org.hibernate.Criteria)} are not</b>, so
+     * queries using {@link #getCriteria()} are never cached and queries with a proxy implementing preExecute (e.g.
+     * a model adding a tenant filter) cannot be made cacheable.
+     *
+     * @param cacheable True to cache results
+     * @return this (for method chaining)
+     * @throws java.lang.IllegalStateException if the query has a proxy implementing preExecute, except
+     *                                         {@link com.play4jpa.jpa.models.Model} entities not overriding it
+     */
+    Query<T> setCacheable(boolean cacheable);
+
+    /**
+     * Get whether results of this query are cached.
+     *
+     * @return True if results are cached
+     */
+    boolean isCacheable();
+
+    /**
+     * Fetch an association of the found entities together with them, instead of loading it lazily for each entity.
+     * <p/>
+     * To-one associations (e.g. <b>creator</b> or <b>creator.company</b>) are joined in the same statement. Collections
+     * would multiply the rows of the statement and break paging, so they are loaded like
+     * {@link #fetchBatch(String, int)} with a batch size of {@link com.play4jpa.jpa.models.DefaultQuery#MAX_IN_SIZE}.
+     * <p/>
+     * Applies to {@link #findList()}, {@link #findPage(int, int)}, {@link #findUnique()} and the paged iterators. Can
+     * be used in {@link QueryProxy#prepareQuery(Query)} to fetch associations for all queries of an entity. The path
+     * is resolved when the query is executed, so queries can still be built without an entity manager.
+     *
+     * @param association Association to fetch
+     * @return this (for method chaining)
+     */
+    Query<T> fetch(String association);
+
+    /**
+     * Load an association (usually a collection) of all found entities after the main statement, with one
+     * <b>IN</b> query per batch of entities, instead of one query per entity.
+     *
+     * @param association Association of the queried entity to load
+     * @param batchSize   Maximum number of entities per query
+     * @return this (for method chaining)
+     */
+    Query<T> fetchBatch(String association, int batchSize);
+
+    /**
+     * Set whether entities are found by selecting their distinct IDs in SQL first and loading the entities by ID
+     * afterwards.
+     * <p/>
+     * Without this mode, joins on collections return an entity once per joined row and the duplicates are removed
+     * in memory, after {@link #setMaxRows(int)} was applied, so pages of {@link #findPage(int, int)} may be short.
+     * With this mode pages are always complete and {@link #findRowCount()} counts distinct entities.
+     * <b>Order fields of joined collections are not supported, as they may yield an ID more than once.</b>
+     *
+     * @param distinctIds True to select distinct IDs first
+     * @return this (for method chaining)
+     */
+    Query<T> setDistinctIds(boolean distinctIds);
+
+    /**
+     * Get whether entities are found by selecting their distinct IDs first.
+     *
+     * @return True if distinct IDs are selected first
+     */
+    boolean isDistinctIds();
+
     /**
      * Get the current offset of the first result to get.
      *
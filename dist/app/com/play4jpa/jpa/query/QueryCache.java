@@ -0,0 +1,353 @@
+package com.play4jpa.jpa.query;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache for results of cacheable {@link Query queries} (see {@link Query#setCacheable(boolean)}).
+ * <p/>
+ * Entries expire after a configurable time to live and are invalidated whenever an entity class they depend on is
+ * written. Entity results are cached as detached, read-only entities and returned as they are on a hit, so a hit does
+ * not access the database at all (see {@link Query#setCacheable(boolean)}).
+ * <p/>
+ * Configured by <b>play4jpa.queryCache.maxEntries</b> (default {@value #DEFAULT_MAX_ENTRIES}) and
+ * <b>play4jpa.queryCache.ttl</b> (seconds, default {@value #DEFAULT_TTL_SECONDS}). The shared cache is owned by the
+ * {@link QueryCachePlugin}, which creates it on application start and discards it on stop, so neither entries nor
+ * configuration survive a reload.
+ *
+ * @author agent
+ */
+public final class QueryCache {
+
+    /**
+     * Default maximum number of entries
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    /**
+     * Default time to live of an entry in seconds
+     */
+    public static final int DEFAULT_TTL_SECONDS = 60;
+
+    /**
+     * Logger instance
+     */
+    private static final play.Logger.ALogger log = play.Logger.of(QueryCache.class);
+
+    /**
+     * Shared instance of the running application or null
+     */
+    private static volatile QueryCache instance;
+
+    /**
+     * Maximum number of entries
+     */
+    private final int maxEntries;
+
+    /**
+     * Time to live of an entry in milliseconds
+     */
+    private final long ttlMillis;
+
+    /**
+     * Cached entries in access order
+     */
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * Incremented on every invalidation, so results computed before an invalidation are not cached
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Statistics counters
+     */
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong(),
+            invalidations = new AtomicLong();
+
+    /**
+     * Create a new cache.
+     *
+     * @param maxEntries Maximum number of entries
+     * @param ttl        Time to live of an entry
+     * @param unit       Unit of ttl
+     */
+    public QueryCache(int maxEntries, long ttl, TimeUnit unit) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be >= 1");
+        }
+
+        this.maxEntries = maxEntries;
+        this.ttlMillis = unit.toMillis(ttl);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > QueryCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Create a cache configured by the given application configuration.
+     *
+     * @param configuration Application configuration
+     * @return New cache
+     */
+    static QueryCache fromConfiguration(play.Configuration configuration) {
+        Integer maxEntries = configuration.getInt("play4jpa.queryCache.maxEntries");
+        Integer ttl = configuration.getInt("play4jpa.queryCache.ttl");
+        return new QueryCache(
+                maxEntries != null ? maxEntries : DEFAULT_MAX_ENTRIES,
+                ttl != null ? ttl : DEFAULT_TTL_SECONDS,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Get the shared cache of the running application.
+     *
+     * @return Shared cache
+     * @throws java.lang.IllegalStateException if the {@link QueryCachePlugin} is not started
+     */
+    public static QueryCache getInstance() {
+        QueryCache cache = instance;
+        if (cache == null) {
+            throw new IllegalStateException("QueryCachePlugin is not started");
+        }
+        return cache;
+    }
+
+    /**
+     * Set the shared cache of the running application.
+     *
+     * @param cache Shared cache
+     */
+    static synchronized void setInstance(QueryCache cache) {
+        instance = cache;
+    }
+
+    /**
+     * Discard the shared cache of a stopping application, unless another application replaced it already.
+     *
+     * @param cache Shared cache of the stopping application
+     */
+    static synchronized void discardInstance(QueryCache cache) {
+        cache.clear();
+        if (instance == cache) {
+            instance = null;
+        }
+    }
+
+    /**
+     * Invalidate all entries depending on the given entity class in the shared cache (if the application is running).
+     *
+     * @param entityClass Written entity class
+     */
+    public static void invalidateShared(Class<?> entityClass) {
+        QueryCache cache = instance;
+        if (cache != null) {
+            cache.invalidate(entityClass);
+        }
+    }
+
+    /**
+     * Check whether results depending on the given entity classes are affected by writes to an entity class (or one
+     * of its super or sub classes).
+     *
+     * @param dependencies Entity classes the results depend on
+     * @param entityClass  Written entity class
+     * @return True if the results are affected
+     */
+    public static boolean dependsOn(Collection<Class<?>> dependencies, Class<?> entityClass) {
+        for (Class<?> dependency : dependencies) {
+            if (dependency.isAssignableFrom(entityClass) || entityClass.isAssignableFrom(dependency)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the current generation. Pass it to {@link #put(String, Object, java.util.Set, long)} to avoid caching
+     * results that were invalidated while being computed.
+     *
+     * @return Current generation
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Get a cached value.
+     *
+     * @param key Cache key
+     * @return Cached value or null
+     */
+    public Object get(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+                entries.remove(key);
+                evictions.incrementAndGet();
+                entry = null;
+            }
+
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return entry.value;
+        }
+    }
+
+    /**
+     * Cache a value unless an invalidation happened since generation was read.
+     *
+     * @param key           Cache key
+     * @param value         Value to cache (must not be null)
+     * @param entityClasses Entity classes the value depends on
+     * @param generation    Generation read before the value was computed
+     */
+    public void put(String key, Object value, Set<Class<?>> entityClasses, long generation) {
+        synchronized (entries) {
+            if (this.generation.get() != generation) {
+                log.trace("Not caching result for {}, invalidated meanwhile", key);
+                return;
+            }
+            entries.put(key, new Entry(value, entityClasses, System.currentTimeMillis() + ttlMillis));
+        }
+    }
+
+    /**
+     * Remove all entries depending on the given entity class (or one of its super or sub classes).
+     *
+     * @param entityClass Written entity class
+     */
+    public void invalidate(Class<?> entityClass) {
+        synchronized (entries) {
+            generation.incrementAndGet();
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().dependsOn(entityClass)) {
+                    iterator.remove();
+                    invalidations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear() {
+        synchronized (entries) {
+            generation.incrementAndGet();
+            entries.clear();
+        }
+    }
+
+    /**
+     * Get the current number of entries.
+     *
+     * @return Number of entries
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Get the number of cache hits.
+     *
+     * @return Number of hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of cache misses.
+     *
+     * @return Number of misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of entries evicted because of the size limit or their time to live.
+     *
+     * @return Number of evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Get the number of entries removed because an entity class they depend on was written.
+     *
+     * @return Number of invalidations
+     */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * Reset all statistics counters.
+     */
+    public void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+        invalidations.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("QueryCache(size=%d, hits=%d, misses=%d, evictions=%d, invalidations=%d)",
+                size(), getHits(), getMisses(), getEvictions(), getInvalidations());
+    }
+
+    /**
+     * Single cache entry.
+     */
+    private static final class Entry {
+
+        /**
+         * Cached value
+         */
+        private final Object value;
+
+        /**
+         * Entity classes the value depends on
+         */
+        private final Set<Class<?>> entityClasses;
+
+        /**
+         * Expiry timestamp in milliseconds
+         */
+        private final long expiresAt;
+
+        private Entry(Object value, Set<Class<?>> entityClasses, long expiresAt) {
+            this.value = value;
+            this.entityClasses = entityClasses;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Check whether this entry depends on the given entity class.
+         *
+         * @param entityClass Entity class to check
+         * @return True if the entry depends on the class
+         */
+        private boolean dependsOn(Class<?> entityClass) {
+            return QueryCache.dependsOn(entityClasses, entityClass);
+        }
+    }
+}
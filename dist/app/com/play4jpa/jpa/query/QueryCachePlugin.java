@@ -0,0 +1,40 @@
+package com.play4jpa.jpa.query;
+
+/**
+ * Play plugin owning the shared {@link QueryCache} of an application: the cache is created with the configuration of
+ * the starting application and discarded when it stops (including reloads in dev mode).
+ * <p/>
+ * Registered in <b>conf/play.plugins</b> of this module.
+ *
+ * @author agent
+ */
+public class QueryCachePlugin extends play.Plugin {
+
+    /**
+     * Application owning the cache
+     */
+    private final play.Application application;
+
+    /**
+     * Cache of the running application
+     */
+    private volatile QueryCache cache;
+
+    public QueryCachePlugin(play.Application application) {
+        this.application = application;
+    }
+
+    @Override
+    public void onStart() {
+        cache = QueryCache.fromConfiguration(application.configuration());
+        QueryCache.setInstance(cache);
+    }
+
+    @Override
+    public void onStop() {
+        if (cache != null) {
+            QueryCache.discardInstance(cache);
+            cache = null;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.play4jpa.jpa.query;
+
+/**
+ * Listener for executed queries and transactions, registered with {@link QueryMetrics#addListener(QueryListener)}.
+ * <p/>
+ * Only called while metrics are enabled. Listeners are called synchronously on the thread executing the query, so
+ * they should return quickly.
+ *
+ * @author agent
+ */
+public interface QueryListener {
+
+    /**
+     * Called after a query was executed.
+     *
+     * @param entityClass   Queried entity class
+     * @param terminal      Kind of execution (e.g. <b>list</b>, <b>unique</b>, <b>rowCount</b>)
+     * @param shape         Normalized query shape (see {@link com.play4jpa.jpa.models.DefaultQuery#getShape()})
+     * @param durationNanos Duration of execution in nanoseconds
+     * @param rows          Number of returned rows
+     */
+    void queryExecuted(Class<?> entityClass, String terminal, String shape, long durationNanos, int rows);
+
+    /**
+     * Called after a query exceeded the slow query threshold.
+     *
+     * @param entityClass   Queried entity class
+     * @param terminal      Kind of execution
+     * @param criteria      Executed criteria with resolved aliases
+     * @param durationNanos Duration of execution in nanoseconds
+     */
+    void slowQuery(Class<?> entityClass, String terminal, String criteria, long durationNanos);
+
+    /**
+     * Called when a query of the same shape ran often enough in one transaction to indicate an N+1 problem.
+     *
+     * @param entityClass Queried entity class
+     * @param terminal    Kind of execution
+     * @param shape       Normalized query shape
+     * @param executions  Number of executions in the transaction so far
+     */
+    void repeatedQuery(Class<?> entityClass, String terminal, String shape, int executions);
+
+    /**
+     * Called after a transaction was completed.
+     *
+     * @param persistenceUnit Persistence unit name
+     * @param outcome         Outcome of the transaction
+     * @param durationNanos   Duration of the transaction in nanoseconds
+     */
+    void transactionCompleted(String persistenceUnit, QueryMetrics.TxOutcome outcome, long durationNanos);
+}
@@ -0,0 +1,604 @@
+package com.play4jpa.jpa.query;
+
+import com.play4jpa.jpa.db.Db;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics of executed queries and transactions: latency and row count histograms per entity class and per query
+ * shape, a log of slow queries, transaction durations and outcomes, and detection of N+1 patterns (the same query
+ * shape executed again and again in one transaction).
+ * <p/>
+ * Disabled by default, in which case recording costs a single volatile read. Configured by
+ * <b>play4jpa.metrics.enabled</b>, <b>play4jpa.metrics.slowQueryMillis</b> (default
+ * {@value #DEFAULT_SLOW_QUERY_MILLIS}), <b>play4jpa.metrics.repeatThreshold</b> (default
+ * {@value #DEFAULT_REPEAT_THRESHOLD}) and <b>play4jpa.metrics.jmx</b> (default true) to register the metrics as
+ * <b>com.play4jpa:type=QueryMetrics</b> MBean.
+ *
+ * @author agent
+ */
+public final class QueryMetrics implements QueryMetricsMXBean {
+
+    /**
+     * Outcome of a transaction.
+     */
+    public enum TxOutcome {
+        COMMIT, ROLLBACK, READ_ONLY
+    }
+
+    /**
+     * Default duration from which on queries are logged as slow
+     */
+    public static final int DEFAULT_SLOW_QUERY_MILLIS = 500;
+
+    /**
+     * Default number of executions of the same shape in one transaction reported as N+1 pattern
+     */
+    public static final int DEFAULT_REPEAT_THRESHOLD = 10;
+
+    /**
+     * Name of the MBean
+     */
+    public static final String OBJECT_NAME = "com.play4jpa:type=QueryMetrics";
+
+    /**
+     * Number of slow queries kept for {@link #getSlowQueries()}
+     */
+    private static final int MAX_SLOW_QUERIES = 100;
+
+    /**
+     * Maximum number of shapes with own statistics, further shapes are aggregated
+     */
+    private static final int MAX_SHAPES = 1000;
+
+    /**
+     * Key for statistics of shapes beyond {@link #MAX_SHAPES}
+     */
+    private static final String OTHER_SHAPES = "(other)";
+
+    /**
+     * Logger instance
+     */
+    private static final play.Logger.ALogger log = play.Logger.of(QueryMetrics.class);
+
+    /**
+     * States of {@link #state}
+     */
+    private static final int UNCONFIGURED = 0, DISABLED = 1, ENABLED = 2;
+
+    /**
+     * Shared instance
+     */
+    private static final QueryMetrics instance = new QueryMetrics();
+
+    /**
+     * Current state, read on every query
+     */
+    private static volatile int state = UNCONFIGURED;
+
+    /**
+     * Duration from which on queries are logged as slow
+     */
+    private volatile long slowQueryNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_QUERY_MILLIS);
+
+    /**
+     * Number of executions of the same shape in one transaction reported as N+1 pattern
+     */
+    private volatile int repeatThreshold = DEFAULT_REPEAT_THRESHOLD;
+
+    /**
+     * Registered listeners
+     */
+    private final List<QueryListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Statistics per entity class name
+     */
+    private final ConcurrentMap<String, Statistics> entityStatistics = new ConcurrentHashMap<>();
+
+    /**
+     * Statistics per entity class name, terminal and shape
+     */
+    private final ConcurrentMap<String, Statistics> shapeStatistics = new ConcurrentHashMap<>();
+
+    /**
+     * Durations of transactions in microseconds
+     */
+    private final Histogram transactionMicros = new Histogram();
+
+    /**
+     * Most recent slow queries
+     */
+    private final Deque<String> slowQueries = new ArrayDeque<>();
+
+    /**
+     * Counters
+     */
+    private final AtomicLong queries = new AtomicLong(), slowQueryCount = new AtomicLong(),
+            repeatedQueries = new AtomicLong(), commits = new AtomicLong(), rollbacks = new AtomicLong(),
+            readOnly = new AtomicLong();
+
+    private QueryMetrics() {
+    }
+
+    /**
+     * Get the shared metrics.
+     *
+     * @return Shared metrics
+     */
+    public static QueryMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Check whether metrics are recorded. Reads the configuration of the current application on first use.
+     *
+     * @return True if metrics are enabled
+     */
+    public static boolean isActive() {
+        int current = state;
+        if (current == UNCONFIGURED) {
+            current = instance.configure();
+        }
+        return current == ENABLED;
+    }
+
+    /**
+     * Read the configuration of the current application.
+     *
+     * @return New state
+     */
+    private synchronized int configure() {
+        if (state != UNCONFIGURED) {
+            return state;
+        }
+
+        play.Configuration configuration;
+        try {
+            configuration = play.Play.application().configuration();
+        } catch (RuntimeException e) {
+            // No application started yet, try again later
+            return DISABLED;
+        }
+
+        Integer slowQueryMillis = configuration.getInt("play4jpa.metrics.slowQueryMillis");
+        if (slowQueryMillis != null) {
+            slowQueryNanos = TimeUnit.MILLISECONDS.toNanos(slowQueryMillis);
+        }
+        Integer threshold = configuration.getInt("play4jpa.metrics.repeatThreshold");
+        if (threshold != null) {
+            repeatThreshold = threshold;
+        }
+        Boolean jmx = configuration.getBoolean("play4jpa.metrics.jmx");
+        if (jmx == null || jmx) {
+            registerMBean();
+        }
+
+        Boolean enabled = configuration.getBoolean("play4jpa.metrics.enabled");
+        state = enabled != null && enabled ? ENABLED : DISABLED;
+        return state;
+    }
+
+    /**
+     * Register these metrics as MBean (if not registered yet).
+     */
+    private void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            log.warn("Could not register query metrics MBean", e);
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return isActive();
+    }
+
+    @Override
+    public synchronized void setEnabled(boolean enabled) {
+        if (state == UNCONFIGURED) {
+            configure();
+        }
+        state = enabled ? ENABLED : DISABLED;
+    }
+
+    /**
+     * Set the duration from which on queries are logged as slow.
+     *
+     * @param duration Duration
+     * @param unit     Unit of duration
+     */
+    public void setSlowQueryThreshold(long duration, TimeUnit unit) {
+        slowQueryNanos = unit.toNanos(duration);
+    }
+
+    /**
+     * Set the number of executions of the same shape in one transaction reported as N+1 pattern.
+     *
+     * @param repeatThreshold Number of executions
+     */
+    public void setRepeatThreshold(int repeatThreshold) {
+        if (repeatThreshold < 2) {
+            throw new IllegalArgumentException("repeatThreshold must be >= 2");
+        }
+        this.repeatThreshold = repeatThreshold;
+    }
+
+    /**
+     * Add a listener.
+     *
+     * @param listener Listener to add
+     */
+    public void addListener(QueryListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Remove a listener.
+     *
+     * @param listener Listener to remove
+     */
+    public void removeListener(QueryListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Record an executed query. Only call if {@link #isActive()}.
+     *
+     * @param entityClass   Queried entity class
+     * @param terminal      Kind of execution (e.g. <b>list</b>)
+     * @param shape         Normalized query shape
+     * @param query         Executed criteria or HQL (only rendered for slow queries)
+     * @param durationNanos Duration of execution in nanoseconds
+     * @param rows          Number of returned rows
+     */
+    public void recordQuery(Class<?> entityClass, String terminal, String shape, Object query,
+                            long durationNanos, int rows) {
+        queries.incrementAndGet();
+        long micros = TimeUnit.NANOSECONDS.toMicros(durationNanos);
+        statistics(entityStatistics, entityClass.getName(), Integer.MAX_VALUE).record(micros, rows);
+
+        String shapeKey = entityClass.getName() + " " + terminal + " " + shape;
+        statistics(shapeStatistics, shapeKey, MAX_SHAPES).record(micros, rows);
+
+        for (QueryListener listener : listeners) {
+            listener.queryExecuted(entityClass, terminal, shape, durationNanos, rows);
+        }
+
+        if (durationNanos >= slowQueryNanos) {
+            recordSlowQuery(entityClass, terminal, String.valueOf(query), durationNanos);
+        }
+
+        int executions = Db.countExecutionInTx(shapeKey);
+        if (executions == repeatThreshold) {
+            repeatedQueries.incrementAndGet();
+            log.warn("Possible N+1 problem: {} executed {} times in one transaction", shapeKey, executions);
+            for (QueryListener listener : listeners) {
+                listener.repeatedQuery(entityClass, terminal, shape, executions);
+            }
+        }
+    }
+
+    /**
+     * Record a slow query.
+     *
+     * @param entityClass   Queried entity class
+     * @param terminal      Kind of execution
+     * @param criteria      Rendered criteria
+     * @param durationNanos Duration of execution in nanoseconds
+     */
+    private void recordSlowQuery(Class<?> entityClass, String terminal, String criteria, long durationNanos) {
+        slowQueryCount.incrementAndGet();
+        String entry = String.format("%d ms %s %s: %s", TimeUnit.NANOSECONDS.toMillis(durationNanos),
+                entityClass.getName(), terminal, criteria);
+        log.warn("Slow query: {}", entry);
+        synchronized (slowQueries) {
+            if (slowQueries.size() == MAX_SLOW_QUERIES) {
+                slowQueries.removeFirst();
+            }
+            slowQueries.addLast(entry);
+        }
+
+        for (QueryListener listener : listeners) {
+            listener.slowQuery(entityClass, terminal, criteria, durationNanos);
+        }
+    }
+
+    /**
+     * Record a completed transaction. Only call if {@link #isActive()}.
+     *
+     * @param persistenceUnit Persistence unit name
+     * @param outcome         Outcome of the transaction
+     * @param durationNanos   Duration of the transaction in nanoseconds
+     */
+    public void recordTransaction(String persistenceUnit, TxOutcome outcome, long durationNanos) {
+        transactionMicros.record(TimeUnit.NANOSECONDS.toMicros(durationNanos));
+        switch (outcome) {
+            case COMMIT:
+                commits.incrementAndGet();
+                break;
+            case ROLLBACK:
+                rollbacks.incrementAndGet();
+                break;
+            default:
+                readOnly.incrementAndGet();
+        }
+
+        for (QueryListener listener : listeners) {
+            listener.transactionCompleted(persistenceUnit, outcome, durationNanos);
+        }
+    }
+
+    /**
+     * Get or create statistics for the given key.
+     *
+     * @param statistics Statistics by key
+     * @param key        Key
+     * @param maxKeys    Maximum number of keys, further keys are aggregated
+     * @return Statistics
+     */
+    private Statistics statistics(ConcurrentMap<String, Statistics> statistics, String key, int maxKeys) {
+        Statistics result = statistics.get(key);
+        if (result == null) {
+            if (statistics.size() >= maxKeys) {
+                key = OTHER_SHAPES;
+            }
+            Statistics created = new Statistics();
+            result = statistics.putIfAbsent(key, created);
+            if (result == null) {
+                result = created;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the statistics of an entity class.
+     *
+     * @param entityClass Entity class
+     * @return Statistics or null if no query was recorded
+     */
+    public Statistics getStatistics(Class<?> entityClass) {
+        return entityStatistics.get(entityClass.getName());
+    }
+
+    /**
+     * Get the statistics of a query shape.
+     *
+     * @param entityClass Entity class
+     * @param terminal    Kind of execution (e.g. <b>list</b>)
+     * @param shape       Normalized query shape
+     * @return Statistics or null if no query was recorded
+     */
+    public Statistics getStatistics(Class<?> entityClass, String terminal, String shape) {
+        return shapeStatistics.get(entityClass.getName() + " " + terminal + " " + shape);
+    }
+
+    /**
+     * Get the histogram of transaction durations in microseconds.
+     *
+     * @return Histogram
+     */
+    public Histogram getTransactionMicros() {
+        return transactionMicros;
+    }
+
+    @Override
+    public long getQueryCount() {
+        return queries.get();
+    }
+
+    @Override
+    public long getSlowQueryCount() {
+        return slowQueryCount.get();
+    }
+
+    @Override
+    public long getRepeatedQueryCount() {
+        return repeatedQueries.get();
+    }
+
+    @Override
+    public long getCommitCount() {
+        return commits.get();
+    }
+
+    @Override
+    public long getRollbackCount() {
+        return rollbacks.get();
+    }
+
+    @Override
+    public long getReadOnlyCount() {
+        return readOnly.get();
+    }
+
+    @Override
+    public String[] getEntityStatistics() {
+        return describe(entityStatistics);
+    }
+
+    @Override
+    public String[] getShapeStatistics() {
+        return describe(shapeStatistics);
+    }
+
+    @Override
+    public String getTransactionStatistics() {
+        return transactionMicros.toString();
+    }
+
+    @Override
+    public String[] getSlowQueries() {
+        synchronized (slowQueries) {
+            return slowQueries.toArray(new String[slowQueries.size()]);
+        }
+    }
+
+    @Override
+    public void reset() {
+        entityStatistics.clear();
+        shapeStatistics.clear();
+        transactionMicros.reset();
+        synchronized (slowQueries) {
+            slowQueries.clear();
+        }
+        queries.set(0);
+        slowQueryCount.set(0);
+        repeatedQueries.set(0);
+        commits.set(0);
+        rollbacks.set(0);
+        readOnly.set(0);
+    }
+
+    /**
+     * Describe all statistics sorted by key.
+     *
+     * @param statistics Statistics by key
+     * @return One line per key
+     */
+    private static String[] describe(Map<String, Statistics> statistics) {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Statistics> entry : new TreeMap<>(statistics).entrySet()) {
+            lines.add(entry.getKey() + ": " + entry.getValue());
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * Latency (in microseconds) and row count histograms of queries.
+     */
+    public static final class Statistics {
+
+        private final Histogram micros = new Histogram();
+
+        private final Histogram rows = new Histogram();
+
+        private void record(long micros, int rows) {
+            this.micros.record(micros);
+            this.rows.record(rows);
+        }
+
+        /**
+         * Get the histogram of query durations in microseconds.
+         *
+         * @return Histogram
+         */
+        public Histogram getMicros() {
+            return micros;
+        }
+
+        /**
+         * Get the histogram of returned rows.
+         *
+         * @return Histogram
+         */
+        public Histogram getRows() {
+            return rows;
+        }
+
+        @Override
+        public String toString() {
+            return "micros(" + micros + ") rows(" + rows + ")";
+        }
+    }
+
+    /**
+     * Lock-free histogram of non-negative values with power-of-two buckets: bucket 0 counts 0, bucket i counts
+     * values from 2^(i-1) to 2^i-1.
+     */
+    public static final class Histogram {
+
+        /**
+         * Number of buckets, enough for all long values
+         */
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        private final AtomicLong count = new AtomicLong(), sum = new AtomicLong(), max = new AtomicLong();
+
+        /**
+         * Record a value.
+         *
+         * @param value Value (negative values are recorded as 0)
+         */
+        public void record(long value) {
+            value = Math.max(value, 0);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+
+            long currentMax = max.get();
+            while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+                currentMax = max.get();
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long n = count.get();
+            return n > 0 ? sum.get() / (double) n : 0;
+        }
+
+        /**
+         * Get an upper bound of the given percentile, i.e. the upper limit of the bucket it falls into.
+         *
+         * @param percentile Percentile (0..100)
+         * @return Upper bound
+         */
+        public long getPercentile(double percentile) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(n * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        private void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "count=%d mean=%.1f p50<=%d p99<=%d max=%d", getCount(), getMean(),
+                    getPercentile(50), getPercentile(99), getMax());
+        }
+    }
+}
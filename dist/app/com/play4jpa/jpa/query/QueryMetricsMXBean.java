@@ -0,0 +1,58 @@
+package com.play4jpa.jpa.query;
+
+/**
+ * JMX view of {@link QueryMetrics}, registered as <b>com.play4jpa:type=QueryMetrics</b>.
+ *
+ * @author agent
+ */
+public interface QueryMetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getQueryCount();
+
+    long getSlowQueryCount();
+
+    long getRepeatedQueryCount();
+
+    long getCommitCount();
+
+    long getRollbackCount();
+
+    long getReadOnlyCount();
+
+    /**
+     * Get latency and row statistics per entity class, one line per class.
+     *
+     * @return Statistics
+     */
+    String[] getEntityStatistics();
+
+    /**
+     * Get latency and row statistics per query shape, one line per shape.
+     *
+     * @return Statistics
+     */
+    String[] getShapeStatistics();
+
+    /**
+     * Get statistics of transaction durations.
+     *
+     * @return Statistics
+     */
+    String getTransactionStatistics();
+
+    /**
+     * Get the most recent slow queries with their criteria.
+     *
+     * @return Slow queries, most recent last
+     */
+    String[] getSlowQueries();
+
+    /**
+     * Reset all statistics.
+     */
+    void reset();
+}
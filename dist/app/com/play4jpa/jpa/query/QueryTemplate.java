@@ -0,0 +1,620 @@
+package com.play4jpa.jpa.query;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import com.play4jpa.jpa.models.Model;
+import org.hibernate.NonUniqueResultException;
+import org.hibernate.Session;
+import org.hibernate.ejb.HibernateEntityManager;
+import play.db.jpa.JPA;
+
+import java.util.*;
+
+/**
+ * Query shape that is defined once and executed many times with different parameter values.
+ * <p/>
+ * The definition is compiled to HQL with named parameters when the template is created. Executions only bind values,
+ * so neither criteria nor aliases are built per request and Hibernate reuses its cached plan for the HQL string.
+ * <pre>
+ * static final QueryTemplate&lt;Task&gt; byCreatorName = Task.find.template(new QueryTemplate.Definition&lt;Task&gt;() {
+ *     public void define(QueryTemplate.Builder&lt;Task&gt; query) {
+ *         query.join("creator").eq("creator.name", QueryTemplate.param("name"));
+ *     }
+ * });
+ *
+ * List&lt;Task&gt; tasks = byCreatorName.bind("name", "tom").findList();
+ * </pre>
+ * Values given directly in the definition (instead of {@link #param(String)}) are bound on each execution as well.
+ * <p/>
+ * Executions are recorded in the {@link QueryMetrics} with the HQL as shape. <b>Templates are neither passed to a
+ * {@link QueryProxy} nor cached by the {@link QueryCache}.</b> As the restrictions of {@link QueryProxy#prepareQuery}
+ * and {@link QueryProxy#preExecute} would be skipped, templates of models overriding them are refused.
+ *
+ * @param <T> Type of queried entity
+ * @author agent
+ */
+public final class QueryTemplate<T> {
+
+    /**
+     * Alias of the queried entity in the generated HQL
+     */
+    private static final String ROOT_ALIAS = "e";
+
+    /**
+     * {@link java.lang.Class} of queried entity.
+     */
+    private final Class<T> entityClass;
+
+    /**
+     * HQL to select entities
+     */
+    private final String selectHql;
+
+    /**
+     * HQL to count rows
+     */
+    private final String countHql;
+
+    /**
+     * Indicates whether the query joins associations (results need to be distinct)
+     */
+    private final boolean hasJoins;
+
+    /**
+     * Names of parameters that have to be bound for each execution
+     */
+    private final Set<String> parameterNames;
+
+    /**
+     * Values given in the definition by generated parameter name
+     */
+    private final Map<String, Object> fixedValues;
+
+    /**
+     * Compile a new template.
+     *
+     * @param entityClass Queried entity class
+     * @param definition  Definition of the query shape
+     * @throws java.lang.IllegalStateException if the entity overrides {@link Model#prepareQuery(Query)} or
+     *                                         {@link Model#preExecute(org.hibernate.Criteria)}
+     */
+    public QueryTemplate(Class<T> entityClass, Definition<T> definition) {
+        if (entityClass == null || definition == null) {
+            throw new IllegalArgumentException("entityClass and definition must not be null");
+        }
+        if (Model.class.isAssignableFrom(entityClass) && Model.overridesQueryHooks(entityClass)) {
+            throw new IllegalStateException("Cannot create a template for " + entityClass.getName()
+                    + ", its query hooks would not be applied");
+        }
+
+        Builder<T> builder = new Builder<>();
+        definition.define(builder);
+
+        String from = " from " + entityClass.getName() + " " + ROOT_ALIAS + builder.joins;
+        String where = builder.restrictions.isEmpty() ? "" : " where " + Joiner.on(" and ").join(builder.restrictions);
+        String orderBy = builder.orders.isEmpty() ? "" : " order by " + Joiner.on(", ").join(builder.orders);
+
+        this.entityClass = entityClass;
+        this.selectHql = "select " + ROOT_ALIAS + from + where + orderBy;
+        this.countHql = "select count(*)" + from + where;
+        this.hasJoins = !builder.aliases.isEmpty();
+        this.parameterNames = Collections.unmodifiableSet(builder.parameterNames);
+        this.fixedValues = Collections.unmodifiableMap(builder.fixedValues);
+    }
+
+    /**
+     * Create a placeholder for a value that is bound on execution.
+     *
+     * @param name Name of parameter
+     * @return Parameter placeholder
+     */
+    public static Parameter param(String name) {
+        return new Parameter(name);
+    }
+
+    /**
+     * Get the queried entity class.
+     *
+     * @return Entity class
+     */
+    public Class<T> getEntityClass() {
+        return entityClass;
+    }
+
+    /**
+     * Get the compiled HQL to select entities.
+     *
+     * @return HQL
+     */
+    public String getHql() {
+        return selectHql;
+    }
+
+    /**
+     * Get the names of all parameters that have to be bound.
+     *
+     * @return Parameter names
+     */
+    public Set<String> getParameterNames() {
+        return parameterNames;
+    }
+
+    /**
+     * Start a new execution by binding the first parameter.
+     *
+     * @param name  Name of parameter
+     * @param value Value of parameter
+     * @return Execution (for method chaining)
+     */
+    public Execution<T> bind(String name, Object value) {
+        return execute().bind(name, value);
+    }
+
+    /**
+     * Start a new execution.
+     *
+     * @return Execution (for method chaining)
+     */
+    public Execution<T> execute() {
+        return new Execution<>(this);
+    }
+
+    @Override
+    public String toString() {
+        return "QueryTemplate(" + selectHql + ")";
+    }
+
+    /**
+     * Definition of a query shape, see {@link QueryTemplate}.
+     *
+     * @param <T> Type of queried entity
+     */
+    public interface Definition<T> {
+
+        /**
+         * Define the query shape by adding restrictions, joins and orders to the given builder.
+         *
+         * @param query Builder to define the query shape with
+         */
+        void define(Builder<T> query);
+    }
+
+    /**
+     * Placeholder for a value that is bound on execution, see {@link QueryTemplate#param(String)}.
+     */
+    public static final class Parameter {
+
+        /**
+         * Name of parameter
+         */
+        private final String name;
+
+        private Parameter(String name) {
+            if (Strings.isNullOrEmpty(name) || !name.matches("[A-Za-z_][A-Za-z0-9_]*")) {
+                throw new IllegalArgumentException("Invalid parameter name: " + name);
+            }
+            this.name = name;
+        }
+
+        /**
+         * Get the name of the parameter.
+         *
+         * @return Name of parameter
+         */
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return ":" + name;
+        }
+    }
+
+    /**
+     * Builder to define the shape of a {@link QueryTemplate}. Mirrors the restriction, join and order methods of
+     * {@link Query}; values can be given directly or as {@link QueryTemplate#param(String)}.
+     *
+     * @param <T> Type of queried entity
+     */
+    public static final class Builder<T> {
+
+        /**
+         * Prefix of names generated for values given directly in the definition
+         */
+        private static final String FIXED_PREFIX = "fixed_";
+
+        /**
+         * Map of association path to used alias
+         */
+        private final Map<String, String> aliases = Maps.newLinkedHashMap();
+
+        /**
+         * Accumulated JOIN clauses
+         */
+        private final StringBuilder joins = new StringBuilder();
+
+        /**
+         * Accumulated restrictions (joined by AND)
+         */
+        private final List<String> restrictions = new ArrayList<>();
+
+        /**
+         * Accumulated ORDER BY expressions
+         */
+        private final List<String> orders = new ArrayList<>();
+
+        /**
+         * Names of parameters to bind on execution
+         */
+        private final Set<String> parameterNames = new LinkedHashSet<>();
+
+        /**
+         * Values given in the definition by generated parameter name
+         */
+        private final Map<String, Object> fixedValues = Maps.newLinkedHashMap();
+
+        private Builder() {
+        }
+
+        /**
+         * See {@link Query#eq(String, Object)}.
+         */
+        public Builder<T> eq(String field, Object value) {
+            return restrict(alialize(field) + " = " + placeholder(value));
+        }
+
+        /**
+         * See {@link Query#ieq(String, String)}.
+         */
+        public Builder<T> ieq(String field, Object value) {
+            return restrict("lower(" + alialize(field) + ") = lower(" + placeholder(value) + ")");
+        }
+
+        /**
+         * See {@link Query#ne(String, Object)}.
+         */
+        public Builder<T> ne(String field, Object value) {
+            return restrict(alialize(field) + " <> " + placeholder(value));
+        }
+
+        /**
+         * See {@link Query#ilike(String, String)}.
+         */
+        public Builder<T> ilike(String field, Object value) {
+            return restrict("lower(" + alialize(field) + ") like lower(" + placeholder(value) + ")");
+        }
+
+        /**
+         * See {@link Query#ge(String, Object)}.
+         */
+        public Builder<T> ge(String field, Object value) {
+            return restrict(alialize(field) + " >= " + placeholder(value));
+        }
+
+        /**
+         * See {@link Query#gt(String, Object)}.
+         */
+        public Builder<T> gt(String field, Object value) {
+            return restrict(alialize(field) + " > " + placeholder(value));
+        }
+
+        /**
+         * See {@link Query#le(String, Object)}.
+         */
+        public Builder<T> le(String field, Object value) {
+            return restrict(alialize(field) + " <= " + placeholder(value));
+        }
+
+        /**
+         * See {@link Query#lt(String, Object)}.
+         */
+        public Builder<T> lt(String field, Object value) {
+            return restrict(alialize(field) + " < " + placeholder(value));
+        }
+
+        /**
+         * See {@link Query#between(String, Object, Object)}.
+         */
+        public Builder<T> between(String field, Object lo, Object hi) {
+            return restrict(alialize(field) + " between " + placeholder(lo) + " and " + placeholder(hi));
+        }
+
+        /**
+         * See {@link Query#isNull(String)}.
+         */
+        public Builder<T> isNull(String field) {
+            return restrict(alialize(field) + " is null");
+        }
+
+        /**
+         * See {@link Query#isNotNull(String)}.
+         */
+        public Builder<T> isNotNull(String field) {
+            return restrict(alialize(field) + " is not null");
+        }
+
+        /**
+         * Add IN constraint. The value must be (or be bound to) a non-empty collection.
+         *
+         * @param field  Field to constrain
+         * @param values Collection of values or parameter
+         * @return this (for method chaining)
+         */
+        public Builder<T> in(String field, Object values) {
+            return restrict(alialize(field) + " in (" + placeholder(values) + ")");
+        }
+
+        /**
+         * Add NOT IN constraint. The value must be (or be bound to) a non-empty collection.
+         *
+         * @param field  Field to constrain
+         * @param values Collection of values or parameter
+         * @return this (for method chaining)
+         */
+        public Builder<T> notIn(String field, Object values) {
+            return restrict(alialize(field) + " not in (" + placeholder(values) + ")");
+        }
+
+        /**
+         * See {@link Query#join(String)}.
+         */
+        public Builder<T> join(String association) {
+            return addJoin(association, " join ");
+        }
+
+        /**
+         * See {@link Query#leftJoin(String)}.
+         */
+        public Builder<T> leftJoin(String association) {
+            return addJoin(association, " left join ");
+        }
+
+        /**
+         * See {@link Query#orderByAsc(String)}.
+         */
+        public Builder<T> orderByAsc(String field) {
+            orders.add(alialize(field) + " asc");
+            return this;
+        }
+
+        /**
+         * See {@link Query#orderByDesc(String)}.
+         */
+        public Builder<T> orderByDesc(String field) {
+            orders.add(alialize(field) + " desc");
+            return this;
+        }
+
+        /**
+         * Add a restriction (joined by AND).
+         *
+         * @param restriction HQL restriction
+         * @return this (for method chaining)
+         */
+        private Builder<T> restrict(String restriction) {
+            restrictions.add(restriction);
+            return this;
+        }
+
+        /**
+         * Add a join on the given association.
+         *
+         * @param association Name of the association
+         * @param joinType    HQL join keyword(s)
+         * @return this (for method chaining)
+         */
+        private Builder<T> addJoin(String association, String joinType) {
+            if (aliases.containsKey(association)) {
+                throw new IllegalArgumentException("Already joined on " + association);
+            }
+
+            String alialized = alialize(association);
+            String alias = association.replace(".", "_") + "_";
+            aliases.put(association, alias);
+            joins.append(joinType).append(alialized).append(' ').append(alias);
+            return this;
+        }
+
+        /**
+         * Get the named parameter for a value, registering fixed values under a generated name.
+         *
+         * @param value Value or {@link Parameter}
+         * @return Named parameter for HQL
+         */
+        private String placeholder(Object value) {
+            if (value instanceof Parameter) {
+                String name = ((Parameter) value).getName();
+                if (name.startsWith(FIXED_PREFIX)) {
+                    throw new IllegalArgumentException("Parameter names must not start with " + FIXED_PREFIX);
+                }
+                parameterNames.add(name);
+                return ":" + name;
+            }
+
+            String name = FIXED_PREFIX + fixedValues.size();
+            fixedValues.put(name, value);
+            return ":" + name;
+        }
+
+        /**
+         * Resolve a field to its HQL path using the root alias or the alias of the joined association.
+         *
+         * @param field Field (relative to the queried entity)
+         * @return HQL path
+         */
+        private String alialize(String field) {
+            if (Strings.isNullOrEmpty(field)) {
+                throw new IllegalArgumentException("field must not be empty");
+            }
+
+            if (aliases.containsKey(field)) {
+                return aliases.get(field);
+            }
+
+            if (!field.contains(".")) {
+                return ROOT_ALIAS + "." + field;
+            }
+
+            int lastDot = field.lastIndexOf(".");
+            String path = field.substring(0, lastDot);
+            String name = field.substring(lastDot + 1);
+            if (!aliases.containsKey(path)) {
+                throw new IllegalStateException("Cannot alialize " + field + ", first join on " + path);
+            }
+
+            return aliases.get(path) + "." + name;
+        }
+    }
+
+    /**
+     * Single execution of a {@link QueryTemplate} with bound parameter values.
+     *
+     * @param <T> Type of queried entity
+     */
+    public static final class Execution<T> {
+
+        /**
+         * Executed template
+         */
+        private final QueryTemplate<T> template;
+
+        /**
+         * Bound values by parameter name
+         */
+        private final Map<String, Object> values;
+
+        private Execution(QueryTemplate<T> template) {
+            this.template = template;
+            this.values = Maps.newHashMap(template.fixedValues);
+        }
+
+        /**
+         * Bind a value to a parameter.
+         *
+         * @param name  Name of parameter
+         * @param value Value of parameter
+         * @return this (for method chaining)
+         */
+        public Execution<T> bind(String name, Object value) {
+            if (!template.parameterNames.contains(name)) {
+                throw new IllegalArgumentException("Unknown parameter " + name + ", expected one of "
+                        + template.parameterNames);
+            }
+            values.put(name, value);
+            return this;
+        }
+
+        /**
+         * Find all entities matching the template.
+         *
+         * @return All matching entities
+         */
+        public List<T> findList() {
+            return list("list", 0, 0);
+        }
+
+        /**
+         * Find all entities matching the template but only for the given page and pageSize.
+         *
+         * @param page     Page to get Entities for
+         * @param pageSize Size of a single page
+         * @return All matching Entities on requested page
+         */
+        public List<T> findPage(int page, int pageSize) {
+            return list("list", (page - 1) * pageSize, pageSize);
+        }
+
+        /**
+         * Find unique entity matching the template.
+         *
+         * @return Unique entity or null
+         * @throws org.hibernate.NonUniqueResultException if more than one entity matches
+         */
+        public T findUnique() {
+            List<T> result = list("unique", 0, 0);
+            if (result.size() > 1) {
+                throw new NonUniqueResultException(result.size());
+            }
+            return result.isEmpty() ? null : result.get(0);
+        }
+
+        /**
+         * Count the rows matching the template.
+         *
+         * @return Number of rows
+         */
+        public long findRowCount() {
+            org.hibernate.Query query = createQuery(template.countHql);
+            if (!QueryMetrics.isActive()) {
+                return (Long) query.uniqueResult();
+            }
+
+            long start = System.nanoTime();
+            Long count = (Long) query.uniqueResult();
+            QueryMetrics.getInstance().recordQuery(template.entityClass, "rowCount", template.selectHql,
+                    template.countHql, System.nanoTime() - start, 1);
+            return count;
+        }
+
+        /**
+         * Execute the select HQL, recording the execution in the {@link QueryMetrics} if enabled.
+         *
+         * @param terminal    Kind of execution
+         * @param firstResult Offset of first result (0 for none)
+         * @param maxRows     Maximum number of rows (0 for all)
+         * @return Distinct entities
+         */
+        @SuppressWarnings("unchecked")
+        private List<T> list(String terminal, int firstResult, int maxRows) {
+            org.hibernate.Query query = createQuery(template.selectHql);
+            if (firstResult > 0) {
+                query.setFirstResult(firstResult);
+            }
+            if (maxRows > 0) {
+                query.setMaxResults(maxRows);
+            }
+
+            List<T> result;
+            if (!QueryMetrics.isActive()) {
+                result = query.list();
+            } else {
+                long start = System.nanoTime();
+                result = query.list();
+                QueryMetrics.getInstance().recordQuery(template.entityClass, terminal, template.selectHql,
+                        template.selectHql, System.nanoTime() - start, result.size());
+            }
+            if (template.hasJoins) {
+                // Same semantics as the DISTINCT_ROOT_ENTITY transformer used by DefaultQuery
+                result = new ArrayList<>(new LinkedHashSet<>(result));
+            }
+            return result;
+        }
+
+        /**
+         * Create a Hibernate query for the given HQL and bind all values.
+         *
+         * @param hql HQL to execute
+         * @return Query ready for execution
+         */
+        private org.hibernate.Query createQuery(String hql) {
+            if (!values.keySet().containsAll(template.parameterNames)) {
+                Set<String> missing = new LinkedHashSet<>(template.parameterNames);
+                missing.removeAll(values.keySet());
+                throw new IllegalStateException("Parameters not bound: " + missing);
+            }
+
+            Session session = JPA.em().unwrap(HibernateEntityManager.class).getSession();
+            org.hibernate.Query query = session.createQuery(hql);
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                if (entry.getValue() instanceof Collection) {
+                    query.setParameterList(entry.getKey(), (Collection<?>) entry.getValue());
+                } else {
+                    query.setParameter(entry.getKey(), entry.getValue());
+                }
+            }
+            return query;
+        }
+    }
+}
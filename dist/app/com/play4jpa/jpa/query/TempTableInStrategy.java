@@ -0,0 +1,286 @@
+package com.play4jpa.jpa.query;
+
+import com.google.common.collect.MapMaker;
+import org.hibernate.Criteria;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.criterion.CriteriaQuery;
+import org.hibernate.criterion.Criterion;
+import org.hibernate.engine.spi.TypedValue;
+import org.hibernate.jdbc.Work;
+import org.hibernate.type.StandardBasicTypes;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link InStrategy} for huge collections: the values are inserted (in JDBC batches) into a temporary table of the
+ * current connection, and the restriction becomes <b>property IN (SELECT v FROM play4jpa_in_&lt;type&gt; WHERE k = ?)</b>.
+ * There is one table per column type, the rows of each restriction are tagged with a key of their own. So the
+ * statement text does not depend on the values, and it can be cached regardless of the collection size.
+ * <p/>
+ * The values are inserted right before each execution of the query and deleted right after it (see
+ * {@link PreparedCriterion}), queries served from the {@link QueryCache} do not touch the table at all. The table is
+ * created once per transaction if it does not exist yet. Therefore <b>the query must be executed in an active
+ * transaction</b>. Supported out of the box for H2 and PostgreSQL; use {@link #TempTableInStrategy(String)} for other
+ * databases.
+ *
+ * @author agent
+ */
+public class TempTableInStrategy implements InStrategy {
+
+    /**
+     * Statement to create a temporary table on H2
+     */
+    public static final String H2_CREATE_TABLE =
+            "CREATE LOCAL TEMPORARY TABLE IF NOT EXISTS %s (k BIGINT, v %s) ON COMMIT DELETE ROWS TRANSACTIONAL";
+
+    /**
+     * Statement to create a temporary table on PostgreSQL
+     */
+    public static final String POSTGRESQL_CREATE_TABLE =
+            "CREATE TEMPORARY TABLE IF NOT EXISTS %s (k BIGINT, v %s) ON COMMIT DELETE ROWS";
+
+    /**
+     * Prefix of the temporary tables, followed by the column type
+     */
+    private static final String TABLE_PREFIX = "play4jpa_in_";
+
+    /**
+     * Number of values inserted per JDBC batch
+     */
+    private static final int INSERT_BATCH_SIZE = 1000;
+
+    /**
+     * Counter for the keys tagging the rows of a restriction
+     */
+    private static final AtomicLong keyCounter = new AtomicLong();
+
+    /**
+     * Temporary tables created (or known to exist) per transaction. Transactions are weak keys compared by identity,
+     * Hibernate creates a new one after each commit or rollback.
+     */
+    private static final ConcurrentMap<Transaction, Set<String>> createdTables = new MapMaker().weakKeys().makeMap();
+
+    /**
+     * Statement to create a temporary table (placeholders: table name, column type) or null to detect it
+     */
+    private final String createTableStatement;
+
+    /**
+     * Create a new strategy detecting the statement to create temporary tables from the database (H2, PostgreSQL).
+     */
+    public TempTableInStrategy() {
+        this(null);
+    }
+
+    /**
+     * Create a new strategy using the given statement to create temporary tables.
+     * <p/>
+     * The statement must create the columns <b>k BIGINT</b> and <b>v</b> (of the given type) and must not fail if the
+     * table already exists.
+     *
+     * @param createTableStatement Format string with placeholders for table name and column type (e.g.
+     *                             {@link #H2_CREATE_TABLE}) or null to detect it from the database
+     */
+    public TempTableInStrategy(String createTableStatement) {
+        this.createTableStatement = createTableStatement;
+    }
+
+    @Override
+    public Criterion in(String propertyName, Collection<?> values, boolean negated) {
+        String columnType = columnType(values);
+        String table = TABLE_PREFIX + columnType.replaceAll("\\W.*", "").toLowerCase();
+        return new TempTableInExpression(propertyName, values, table, columnType, negated);
+    }
+
+    /**
+     * Create a temporary table unless it was already created in the current transaction.
+     *
+     * @param transaction Current transaction
+     * @param connection  Current connection
+     * @param table       Name of table
+     * @param columnType  SQL type of the value column
+     * @throws java.sql.SQLException on database errors
+     */
+    private void createTableIfMissing(Transaction transaction, Connection connection, String table,
+                                      String columnType) throws SQLException {
+        Set<String> tables = createdTables.get(transaction);
+        if (tables == null) {
+            tables = Collections.synchronizedSet(new HashSet<String>());
+            Set<String> existing = createdTables.putIfAbsent(transaction, tables);
+            if (existing != null) {
+                tables = existing;
+            }
+        }
+        if (tables.contains(table)) {
+            return;
+        }
+
+        try (Statement create = connection.createStatement()) {
+            create.execute(String.format(createTableStatement(connection), table, columnType));
+        }
+        tables.add(table);
+    }
+
+    /**
+     * Get the statement to create a temporary table.
+     *
+     * @param connection Current connection
+     * @return Format string with placeholders for table name and column type
+     * @throws java.sql.SQLException on database errors
+     */
+    private String createTableStatement(Connection connection) throws SQLException {
+        if (createTableStatement != null) {
+            return createTableStatement;
+        }
+
+        String product = connection.getMetaData().getDatabaseProductName();
+        switch (product) {
+            case "H2":
+                return H2_CREATE_TABLE;
+            case "PostgreSQL":
+                return POSTGRESQL_CREATE_TABLE;
+            default:
+                throw new UnsupportedOperationException("No statement to create temporary tables for " + product);
+        }
+    }
+
+    /**
+     * Get the SQL column type for the given values.
+     *
+     * @param values Values to store
+     * @return SQL column type
+     */
+    private String columnType(Collection<?> values) {
+        Object first = values.iterator().next();
+        if (first instanceof Long) {
+            return "BIGINT";
+        } else if (first instanceof Integer || first instanceof Short) {
+            return "INTEGER";
+        } else if (first instanceof String) {
+            return "VARCHAR(4000)";
+        }
+        throw new UnsupportedOperationException("Values of " + (first != null ? first.getClass() : null)
+                + " are not supported for temporary tables");
+    }
+
+    /**
+     * Restriction of a property to the values of a temporary table, filled on each execution.
+     */
+    class TempTableInExpression implements PreparedCriterion {
+
+        /**
+         * Property to constrain
+         */
+        private final String propertyName;
+
+        /**
+         * Values to insert into the table
+         */
+        private final Collection<?> values;
+
+        /**
+         * Name of temporary table
+         */
+        private final String table;
+
+        /**
+         * SQL type of the value column
+         */
+        private final String columnType;
+
+        /**
+         * True for NOT IN
+         */
+        private final boolean negated;
+
+        /**
+         * Key tagging the rows of this restriction
+         */
+        private final long key = keyCounter.incrementAndGet();
+
+        TempTableInExpression(String propertyName, Collection<?> values, String table, String columnType,
+                              boolean negated) {
+            this.propertyName = propertyName;
+            this.values = values;
+            this.table = table;
+            this.columnType = columnType;
+            this.negated = negated;
+        }
+
+        @Override
+        public void prepare(Session session) {
+            final Transaction transaction = session.getTransaction();
+            if (!transaction.isActive()) {
+                throw new IllegalStateException("Temporary tables for IN restrictions need an active transaction");
+            }
+
+            session.doWork(new Work() {
+                @Override
+                public void execute(Connection connection) throws SQLException {
+                    createTableIfMissing(transaction, connection, table, columnType);
+
+                    try (PreparedStatement insert = connection.prepareStatement("INSERT INTO " + table
+                            + " (k, v) VALUES (?, ?)")) {
+                        int batched = 0;
+                        for (Object value : values) {
+                            insert.setLong(1, key);
+                            insert.setObject(2, value);
+                            insert.addBatch();
+                            if (++batched == INSERT_BATCH_SIZE) {
+                                insert.executeBatch();
+                                batched = 0;
+                            }
+                        }
+                        if (batched > 0) {
+                            insert.executeBatch();
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void release(Session session) {
+            session.doWork(new Work() {
+                @Override
+                public void execute(Connection connection) throws SQLException {
+                    try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + table
+                            + " WHERE k = ?")) {
+                        delete.setLong(1, key);
+                        delete.executeUpdate();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public String toSqlString(Criteria criteria, CriteriaQuery criteriaQuery) throws HibernateException {
+            String[] columns = criteriaQuery.getColumnsUsingProjection(criteria, propertyName);
+            if (columns.length != 1) {
+                throw new HibernateException("Temporary table IN restrictions need a single column: " + propertyName);
+            }
+            return columns[0] + (negated ? " not in" : " in") + " (select v from " + table + " where k = ?)";
+        }
+
+        @Override
+        public TypedValue[] getTypedValues(Criteria criteria, CriteriaQuery criteriaQuery) throws HibernateException {
+            return new TypedValue[]{new TypedValue(StandardBasicTypes.LONG, key)};
+        }
+
+        @Override
+        public String toString() {
+            return propertyName + (negated ? " not in " : " in ") + table + "[" + values.size() + " values]";
+        }
+    }
+}
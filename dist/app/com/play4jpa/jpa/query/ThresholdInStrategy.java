@@ -0,0 +1,54 @@
+package com.play4jpa.jpa.query;
+
+import org.hibernate.criterion.Criterion;
+
+import java.util.Collection;
+
+/**
+ * {@link InStrategy} delegating to one strategy for small and to another one for large collections.
+ * <pre>
+ * DefaultQuery.setDefaultInStrategy(
+ *         new ThresholdInStrategy(10000, new ChunkedInStrategy(), new TempTableInStrategy()));
+ * </pre>
+ *
+ * @author agent
+ */
+public class ThresholdInStrategy implements InStrategy {
+
+    /**
+     * Collections with more values are handled by {@link #large}
+     */
+    private final int threshold;
+
+    /**
+     * Strategy for collections up to {@link #threshold} values
+     */
+    private final InStrategy small;
+
+    /**
+     * Strategy for collections with more than {@link #threshold} values
+     */
+    private final InStrategy large;
+
+    /**
+     * Create a new strategy.
+     *
+     * @param threshold Maximum number of values handled by small
+     * @param small     Strategy for small collections
+     * @param large     Strategy for large collections
+     */
+    public ThresholdInStrategy(int threshold, InStrategy small, InStrategy large) {
+        if (small == null || large == null) {
+            throw new IllegalArgumentException("small and large must not be null");
+        }
+        this.threshold = threshold;
+        this.small = small;
+        this.large = large;
+    }
+
+    @Override
+    public Criterion in(String propertyName, Collection<?> values, boolean negated) {
+        InStrategy strategy = values.size() > threshold ? large : small;
+        return strategy.in(propertyName, values, negated);
+    }
+}
@@ -0,0 +1,118 @@
+package com.play4jpa.jpa.test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snapshot of a complete H2 database (schema and rows) held in memory.
+ * <p/>
+ * Created with H2's <b>SCRIPT</b> command after the fixtures were loaded once, and restored before each test by
+ * dropping all objects and replaying the script, which is much faster than parsing and persisting the fixtures again.
+ *
+ * @author agent
+ */
+public final class FixtureSnapshot {
+
+    /**
+     * Name of the H2 database product as reported by JDBC metadata
+     */
+    private static final String H2_PRODUCT_NAME = "H2";
+
+    /**
+     * SQL statements to recreate the database
+     */
+    private final List<String> statements;
+
+    /**
+     * Create a snapshot from the given statements.
+     *
+     * @param statements SQL statements to recreate the database
+     */
+    private FixtureSnapshot(List<String> statements) {
+        this.statements = Collections.unmodifiableList(statements);
+    }
+
+    /**
+     * Check whether snapshots can be taken for the database of the given connection.
+     *
+     * @param connection Connection to check
+     * @return True if the database is H2
+     * @throws java.sql.SQLException on database errors
+     */
+    public static boolean isSupported(Connection connection) throws SQLException {
+        return H2_PRODUCT_NAME.equals(connection.getMetaData().getDatabaseProductName());
+    }
+
+    /**
+     * Describe the schema of the database of the given connection (version, tables and columns), so snapshots are
+     * only restored into the schema they were taken from.
+     *
+     * @param connection Connection to an H2 database
+     * @return Schema description
+     * @throws java.sql.SQLException on database errors
+     */
+    public static String describeSchema(Connection connection) throws SQLException {
+        StringBuilder schema = new StringBuilder(connection.getMetaData().getDatabaseProductVersion());
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT TABLE_NAME, COLUMN_NAME, TYPE_NAME, IS_NULLABLE"
+                     + " FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA = SCHEMA()"
+                     + " ORDER BY TABLE_NAME, ORDINAL_POSITION")) {
+            while (resultSet.next()) {
+                schema.append(';').append(resultSet.getString(1)).append('.').append(resultSet.getString(2))
+                        .append(':').append(resultSet.getString(3)).append(':').append(resultSet.getString(4));
+            }
+        }
+        return schema.toString();
+    }
+
+    /**
+     * Take a snapshot of the database of the given connection.
+     *
+     * @param connection Connection to an H2 database
+     * @return Snapshot
+     * @throws java.sql.SQLException on database errors
+     */
+    public static FixtureSnapshot capture(Connection connection) throws SQLException {
+        List<String> statements = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SCRIPT NOPASSWORDS NOSETTINGS")) {
+            while (resultSet.next()) {
+                String sql = resultSet.getString(1);
+                // Skip row count comments
+                if (!sql.startsWith("--")) {
+                    statements.add(sql);
+                }
+            }
+        }
+        return new FixtureSnapshot(statements);
+    }
+
+    /**
+     * Replace the content of the database of the given connection with this snapshot.
+     *
+     * @param connection Connection to an H2 database
+     * @throws java.sql.SQLException on database errors
+     */
+    public void restore(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("DROP ALL OBJECTS");
+            for (String sql : statements) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    /**
+     * Get the number of statements needed to restore this snapshot.
+     *
+     * @return Number of statements
+     */
+    public int size() {
+        return statements.size();
+    }
+}
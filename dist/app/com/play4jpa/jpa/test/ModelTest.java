@@ -1,19 +1,33 @@
 package com.play4jpa.jpa.test;
 
+import com.google.common.base.Joiner;
+import com.google.common.collect.Maps;
 import com.play4jpa.fixy.Fixy;
 import com.play4jpa.fixy.JpaFixyBuilder;
+import com.play4jpa.jpa.db.Db;
+import com.play4jpa.jpa.query.QueryCache;
+import org.hibernate.Session;
+import org.hibernate.jdbc.ReturningWork;
+import org.hibernate.jdbc.Work;
 import play.Logger;
 import play.db.jpa.JPA;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityTransaction;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Generic Test setup for all Model tests.
  * <p/>
  * Handles the fakeApplication startup, loads an fresh in memory database before each test and loads the fixtures.
+ * <p/>
+ * If {@link #useFixtureSnapshots()} is enabled, each distinct set of fixtures is only loaded once. The resulting
+ * H2 database is kept as {@link FixtureSnapshot} and restored before each following test.
  *
  * @author Jens (mail@jensjaeger.com)
  * @author rosem
@@ -22,6 +36,21 @@ public abstract class ModelTest {
 
     public static final String DEFAULT_FIXTURE_PATH = "fixtures";
 
+    /**
+     * Snapshots of loaded fixture sets (key: joined fixture paths, persistence unit and schema description).
+     */
+    private static final Map<String, FixtureSnapshot> fixtureSnapshots = Maps.newHashMap();
+
+    /**
+     * Number of fixture loads and accumulated load time (nanoseconds).
+     */
+    private static long fixtureLoads = 0, fixtureLoadNanos = 0;
+
+    /**
+     * Number of snapshot restores and accumulated restore time (nanoseconds).
+     */
+    private static long snapshotRestores = 0, snapshotRestoreNanos = 0;
+
     /**
      * EntityManager to use (created for each test case).
      */
@@ -68,6 +97,31 @@ public abstract class ModelTest {
         return new ArrayList<>();
     }
 
+    /**
+     * Template method - override if needed.
+     * <p/>
+     * Return true to load each distinct set of fixtures only once and restore a snapshot of the resulting database
+     * before each following test. Only supported for H2 databases, fixtures are loaded normally otherwise.
+     *
+     * @return True to use fixture snapshots
+     */
+    public boolean useFixtureSnapshots() {
+        return false;
+    }
+
+    /**
+     * Get a report of the time spent loading fixtures and restoring snapshots so far.
+     *
+     * @return Timing report
+     */
+    public static synchronized String fixtureTimingReport() {
+        return String.format("Fixtures: %d loads in %d ms (avg %.2f ms), %d snapshot restores in %d ms (avg %.2f ms)",
+                fixtureLoads, TimeUnit.NANOSECONDS.toMillis(fixtureLoadNanos),
+                fixtureLoads > 0 ? fixtureLoadNanos / 1e6 / fixtureLoads : 0.0,
+                snapshotRestores, TimeUnit.NANOSECONDS.toMillis(snapshotRestoreNanos),
+                snapshotRestores > 0 ? snapshotRestoreNanos / 1e6 / snapshotRestores : 0.0);
+    }
+
     /**
      * Get the default path to where your fixtures are located.
      *
@@ -135,10 +189,96 @@ public abstract class ModelTest {
      */
     protected void loadFixtures() {
         Logger.debug("Loading fixtures");
+        String[] paths = pathsForFixtureNames(fixturesToLoad());
+        QueryCache.getInstance().clear();
         openTransaction();
-        Fixy fixtures = new JpaFixyBuilder(JPA.em()).build();
-        fixtures.load(pathsForFixtureNames(fixturesToLoad()));
+        if (useFixtureSnapshots()) {
+            loadFixturesFromSnapshot(paths);
+        } else {
+            loadFixtures(paths);
+        }
         closeTransaction();
         Logger.debug("Fixtures loaded successfully.");
     }
+
+    /**
+     * Parse and persist the given fixtures using the current transaction.
+     *
+     * @param paths Paths to fixtures
+     */
+    private void loadFixtures(String[] paths) {
+        long start = System.nanoTime();
+        Fixy fixtures = new JpaFixyBuilder(JPA.em()).withBatchSize(Db.getBatchSize()).build();
+        fixtures.load(paths);
+        em.flush();
+        recordFixtureLoad(System.nanoTime() - start);
+    }
+
+    /**
+     * Restore the snapshot for the given fixtures or load them and take a snapshot if there is none yet.
+     *
+     * @param paths Paths to fixtures
+     */
+    private void loadFixturesFromSnapshot(String[] paths) {
+        String schema = em.unwrap(Session.class).doReturningWork(new ReturningWork<String>() {
+            @Override
+            public String execute(Connection connection) throws SQLException {
+                return FixtureSnapshot.isSupported(connection) ? FixtureSnapshot.describeSchema(connection) : "";
+            }
+        });
+        final String key = Joiner.on(',').join(paths) + "|"
+                + play.Play.application().configuration().getString("jpa.default") + "|" + schema;
+        final FixtureSnapshot snapshot;
+        synchronized (fixtureSnapshots) {
+            snapshot = fixtureSnapshots.get(key);
+        }
+
+        if (snapshot != null) {
+            long start = System.nanoTime();
+            em.unwrap(Session.class).doWork(new Work() {
+                @Override
+                public void execute(Connection connection) throws SQLException {
+                    snapshot.restore(connection);
+                }
+            });
+            recordSnapshotRestore(System.nanoTime() - start);
+        } else {
+            loadFixtures(paths);
+            em.unwrap(Session.class).doWork(new Work() {
+                @Override
+                public void execute(Connection connection) throws SQLException {
+                    if (!FixtureSnapshot.isSupported(connection)) {
+                        Logger.warn("Fixture snapshots are only supported for H2");
+                        return;
+                    }
+                    FixtureSnapshot newSnapshot = FixtureSnapshot.capture(connection);
+                    synchronized (fixtureSnapshots) {
+                        fixtureSnapshots.put(key, newSnapshot);
+                    }
+                    Logger.debug("Created fixture snapshot with {} statements", newSnapshot.size());
+                }
+            });
+        }
+        Logger.debug(fixtureTimingReport());
+    }
+
+    /**
+     * Record the duration of a fixture load.
+     *
+     * @param nanos Duration in nanoseconds
+     */
+    private static synchronized void recordFixtureLoad(long nanos) {
+        fixtureLoads++;
+        fixtureLoadNanos += nanos;
+    }
+
+    /**
+     * Record the duration of a snapshot restore.
+     *
+     * @param nanos Duration in nanoseconds
+     */
+    private static synchronized void recordSnapshotRestore(long nanos) {
+        snapshotRestores++;
+        snapshotRestoreNanos += nanos;
+    }
 }
@@ -0,0 +1,97 @@
+package com.play4jpa.bench;
+
+import com.play4jpa.jpa.db.Db;
+import com.play4jpa.test.models.Task;
+import com.play4jpa.test.models.User;
+import org.openjdk.jmh.annotations.*;
+import play.libs.F;
+import play.test.FakeApplication;
+import play.test.Helpers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Embedded H2 database shared by all threads of a benchmark, seeded with {@link #users} users and {@link #tasks}
+ * tasks (override with <b>-p tasks=...</b>).
+ *
+ * @author agent
+ */
+@State(Scope.Benchmark)
+public class BenchDatabase {
+
+    /**
+     * Number of tasks to seed
+     */
+    @Param({"10000"})
+    public int tasks;
+
+    /**
+     * Number of users to seed, tasks are distributed evenly
+     */
+    @Param({"100"})
+    public int users;
+
+    private FakeApplication app;
+
+    @Setup(Level.Trial)
+    public void start() throws Throwable {
+        // The bench project does not load test.conf: bind the default in-memory datasource to the JNDI name of
+        // persistence.xml and enable the persistence unit
+        Map<String, String> configuration = new HashMap<>(Helpers.inMemoryDatabase());
+        configuration.put("db.default.jndiName", "DefaultDS");
+        configuration.put("jpa.default", "defaultPersistenceUnit");
+        app = Helpers.fakeApplication(configuration);
+        Helpers.start(app);
+        seed();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        Helpers.stop(app);
+    }
+
+    /**
+     * Insert users and tasks using bulk writes.
+     */
+    private void seed() throws Throwable {
+        Db.withTx(new F.Callback0() {
+            @Override
+            public void invoke() throws Throwable {
+                List<User> newUsers = new ArrayList<>(users);
+                for (int i = 0; i < users; i++) {
+                    User user = new User();
+                    user.email = userEmail(i);
+                    user.name = "user " + i;
+                    user.age = 20 + i % 50;
+                    user.defaultPriority = i % 10;
+                    newUsers.add(user);
+                }
+                User.find.saveAll(newUsers, Db.getBatchSize(), true);
+
+                List<Task> newTasks = new ArrayList<>(tasks);
+                for (int i = 0; i < tasks; i++) {
+                    Task task = new Task();
+                    task.name = "task " + i;
+                    task.done = i % 3 == 0;
+                    task.priority = i % 10;
+                    task.creator = Db.em().getReference(User.class, userEmail(i % users));
+                    newTasks.add(task);
+                }
+                Task.find.saveAll(newTasks, Db.getBatchSize(), true);
+            }
+        });
+    }
+
+    /**
+     * Get the email (ID) of a seeded user.
+     *
+     * @param i Number of user
+     * @return Email
+     */
+    public static String userEmail(int i) {
+        return "user" + i + "@bench.play4jpa.com";
+    }
+}
@@ -0,0 +1,39 @@
+package com.play4jpa.bench;
+
+import org.openjdk.jmh.annotations.*;
+import play.db.jpa.JPA;
+
+import javax.persistence.EntityManager;
+
+/**
+ * Read-only transaction bound to the benchmark thread for one iteration, like {@link com.play4jpa.jpa.db.Db#withTx}
+ * would bind it for a request.
+ *
+ * @author agent
+ */
+@State(Scope.Thread)
+public class BenchTransaction {
+
+    private EntityManager em;
+
+    @Setup(Level.Iteration)
+    public void begin(BenchDatabase database) {
+        em = JPA.em("default");
+        JPA.bindForCurrentThread(em);
+        em.getTransaction().begin();
+    }
+
+    @TearDown(Level.Iteration)
+    public void end() {
+        em.getTransaction().rollback();
+        JPA.bindForCurrentThread(null);
+        em.close();
+    }
+
+    /**
+     * Detach all loaded entities, so a benchmark does not measure a growing persistence context.
+     */
+    public void clear() {
+        em.clear();
+    }
+}
@@ -0,0 +1,34 @@
+package com.play4jpa.bench;
+
+import com.play4jpa.fixy.JpaFixyBuilder;
+import com.play4jpa.jpa.db.Db;
+import org.openjdk.jmh.annotations.*;
+import play.libs.F;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and persisting the YAML fixtures of the test suite. The transaction is rolled back, so every invocation
+ * starts with the same database.
+ *
+ * @author agent
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class FixyBenchmark {
+
+    private static final F.Callback0 LOAD = new F.Callback0() {
+        @Override
+        public void invoke() throws Throwable {
+            new JpaFixyBuilder(Db.em()).build().load("fixtures/tasks.yaml");
+        }
+    };
+
+    @Benchmark
+    public void loadTasks(BenchDatabase database) throws Throwable {
+        Db.withTx(LOAD);
+    }
+}
@@ -0,0 +1,84 @@
+package com.play4jpa.bench;
+
+import com.play4jpa.jpa.query.ChunkedInStrategy;
+import com.play4jpa.jpa.query.InStrategy;
+import com.play4jpa.jpa.query.TempTableInStrategy;
+import com.play4jpa.test.models.Task;
+import org.openjdk.jmh.annotations.*;
+import play.db.jpa.JPA;
+
+import javax.persistence.EntityManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link InStrategy} implementations for IN restrictions with growing collections.
+ * <p/>
+ * Each invocation runs in a transaction of its own, so temporary tables and loaded entities do not accumulate over
+ * an iteration.
+ *
+ * @author agent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class InBenchmark {
+
+    /**
+     * Number of values in the IN restriction
+     */
+    @Param({"10", "100", "1000", "10000"})
+    public int size;
+
+    /**
+     * Strategy to render the IN restriction
+     */
+    @Param({"chunked", "tempTable"})
+    public String strategy;
+
+    private InStrategy inStrategy;
+
+    private List<Long> ids;
+
+    @Setup
+    public void setup() {
+        inStrategy = "tempTable".equals(strategy) ? new TempTableInStrategy() : new ChunkedInStrategy();
+        ids = new ArrayList<>(size);
+        for (long id = 1; id <= size; id++) {
+            ids.add(id);
+        }
+    }
+
+    @Benchmark
+    public int in(BenchDatabase database, InvocationTransaction tx) {
+        return Task.find.query().setInStrategy(inStrategy).in("id", ids).findList().size();
+    }
+
+    /**
+     * Transaction bound to the benchmark thread for a single invocation and rolled back afterwards.
+     */
+    @State(Scope.Thread)
+    public static class InvocationTransaction {
+
+        private EntityManager em;
+
+        @Setup(Level.Invocation)
+        public void begin(BenchDatabase database) {
+            em = JPA.em("default");
+            JPA.bindForCurrentThread(em);
+            em.getTransaction().begin();
+        }
+
+        @TearDown(Level.Invocation)
+        public void end() {
+            em.getTransaction().rollback();
+            JPA.bindForCurrentThread(null);
+            em.close();
+        }
+    }
+}
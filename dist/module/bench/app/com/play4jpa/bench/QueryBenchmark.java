@@ -0,0 +1,95 @@
+package com.play4jpa.bench;
+
+import com.play4jpa.jpa.query.Query;
+import com.play4jpa.test.models.Task;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for building and executing {@link Query queries}.
+ *
+ * @author agent
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+
+    /**
+     * Page size for paging benchmarks
+     */
+    private static final int PAGE_SIZE = 50;
+
+    /**
+     * Build a query with joins and restrictions without executing it. Run with many threads to measure contention on
+     * the shared alias counter (e.g. <b>-t 8</b>).
+     */
+    @Benchmark
+    public Query<Task> buildCriteria(BenchTransaction tx) {
+        return Task.find.query()
+                .join("creator")
+                .eq("creator.name", "user 1")
+                .ge("priority", 3)
+                .isNotNull("done")
+                .orderByAsc("priority");
+    }
+
+    /**
+     * Same as {@link #buildCriteria(BenchTransaction)} with 8 threads.
+     */
+    @Benchmark
+    @Threads(8)
+    public Query<Task> buildCriteriaContended(BenchTransaction tx) {
+        return buildCriteria(tx);
+    }
+
+    @Benchmark
+    public List<Task> findPageFirst(BenchTransaction tx) {
+        List<Task> page = Task.find.query().orderByAsc("id").findPage(1, PAGE_SIZE);
+        tx.clear();
+        return page;
+    }
+
+    /**
+     * Last page of the seeded tasks, i.e. the deepest offset.
+     */
+    @Benchmark
+    public List<Task> findPageDeep(BenchDatabase database, BenchTransaction tx) {
+        List<Task> page = Task.find.query().orderByAsc("id").findPage(database.tasks / PAGE_SIZE, PAGE_SIZE);
+        tx.clear();
+        return page;
+    }
+
+    /**
+     * Deepest page using keyset paging instead of an offset.
+     */
+    @Benchmark
+    public List<Task> findPageAfterDeep(BenchDatabase database, BenchTransaction tx) {
+        Task last = new Task();
+        last.id = (long) database.tasks - PAGE_SIZE;
+        List<Task> page = Task.find.query().findPageAfter("id", last, PAGE_SIZE);
+        tx.clear();
+        return page;
+    }
+
+    @Benchmark
+    public List<Task> findListJoined(BenchTransaction tx) {
+        List<Task> tasks = Task.find.query().join("creator").eq("creator.name", "user 1").findList();
+        tx.clear();
+        return tasks;
+    }
+
+    @Benchmark
+    public long findRowCount(BenchTransaction tx) {
+        return Task.find.query().eq("done", false).findRowCount();
+    }
+
+    @Benchmark
+    public long findRowCountJoined(BenchTransaction tx) {
+        return Task.find.query().join("creator").ge("creator.age", 40).findRowCount();
+    }
+}
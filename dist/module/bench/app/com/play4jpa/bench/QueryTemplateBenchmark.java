@@ -0,0 +1,46 @@
+package com.play4jpa.bench;
+
+import com.play4jpa.jpa.query.QueryTemplate;
+import com.play4jpa.test.models.Task;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.play4jpa.jpa.query.QueryTemplate.param;
+
+/**
+ * Compares a hot {@link QueryTemplate} with building the same query via {@link com.play4jpa.jpa.query.Query} for
+ * each request.
+ *
+ * @author agent
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@Threads(8)
+public class QueryTemplateBenchmark {
+
+    private static final QueryTemplate<Task> byCreatorName = Task.find.template(new QueryTemplate.Definition<Task>() {
+        @Override
+        public void define(QueryTemplate.Builder<Task> query) {
+            query.join("creator").eq("creator.name", param("name")).ge("priority", param("priority"));
+        }
+    });
+
+    @Benchmark
+    public List<Task> builder(BenchTransaction tx) {
+        List<Task> tasks = Task.find.query().join("creator").eq("creator.name", "user 1").ge("priority", 5).findList();
+        tx.clear();
+        return tasks;
+    }
+
+    @Benchmark
+    public List<Task> template(BenchTransaction tx) {
+        List<Task> tasks = byCreatorName.bind("name", "user 1").bind("priority", 5).findList();
+        tx.clear();
+        return tasks;
+    }
+}
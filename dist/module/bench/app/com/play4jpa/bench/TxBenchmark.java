@@ -0,0 +1,55 @@
+package com.play4jpa.bench;
+
+import com.play4jpa.jpa.db.Db;
+import com.play4jpa.test.models.Task;
+import org.openjdk.jmh.annotations.*;
+import play.libs.F;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of {@link Db#withTx} (entity manager, transaction and bindings) with and without work inside.
+ *
+ * @author agent
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TxBenchmark {
+
+    private static final F.Function0<Object> EMPTY = new F.Function0<Object>() {
+        @Override
+        public Object apply() throws Throwable {
+            return null;
+        }
+    };
+
+    private static final F.Function0<Object> BY_ID = new F.Function0<Object>() {
+        @Override
+        public Object apply() throws Throwable {
+            return Task.find.byId(1L);
+        }
+    };
+
+    @Benchmark
+    public Object withTxEmpty(BenchDatabase database) throws Throwable {
+        return Db.withTx("default", false, EMPTY);
+    }
+
+    @Benchmark
+    public Object withTxReadOnlyEmpty(BenchDatabase database) throws Throwable {
+        return Db.withTx("default", true, EMPTY);
+    }
+
+    @Benchmark
+    public Object withTxById(BenchDatabase database) throws Throwable {
+        return Db.withTx("default", false, BY_ID);
+    }
+
+    @Benchmark
+    public Object withTxAsyncById(BenchDatabase database) throws Throwable {
+        return Db.withTxAsync("default", false, BY_ID).get(10, TimeUnit.SECONDS);
+    }
+}
@@ -14,10 +14,7 @@ import org.yaml.snakeyaml.nodes.Node;
 import org.yaml.snakeyaml.nodes.ScalarNode;
 import org.yaml.snakeyaml.nodes.Tag;
 
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-import java.util.Queue;
+import java.util.*;
 
 
 class ConstructImport extends AbstractConstruct {
@@ -58,8 +55,15 @@ class ConstructPackage extends AbstractConstruct {
  * CoreFixy allows you to create Java classes from YAML markup.
  */
 public final class CoreFixy extends CompactConstructor implements Fixy {
+    /**
+     * Resolved classes of this instance. Unknown names are cached as {@link Missing}. Like
+     * {@link #postProcessorsByClass}, the cache lives only as long as the instance (usually one load), so no
+     * application class loader is kept after a reload.
+     */
+    private final Map<String, Class<?>> classCache = Maps.newHashMap();
     private final Map<String, Object> entityCache = Maps.newLinkedHashMap();
     private final Multimap<Class<?>, Processor<?>> postProcessors = HashMultimap.create();
+    private final Map<Class<?>, List<Processor<?>>> postProcessorsByClass = Maps.newHashMap();
     private final Persister persister;
     private final String defaultPackage;
     private final BeanAccess beanAccess;
@@ -85,26 +89,42 @@ public final class CoreFixy extends CompactConstructor implements Fixy {
 
     @Override
     protected Class<?> getClassForName(String name) throws ClassNotFoundException {
+        ClassLoader classLoader = play.Play.application().classloader();
         if (!Strings.isNullOrEmpty(packageName)) {
-            try {
-                return Class.forName(packageName + "." + name, true, play.Play.application().classloader());
-                //return super.getClassForName(packageName + "." + name);
-            } catch (ClassNotFoundException ignored) {
+            Class<?> clazz = findClass(classLoader, packageName + "." + name);
+            if (clazz != null) {
+                return clazz;
             }
         }
-        ClassNotFoundException exceptionToThrow;
-        try {
-            return Class.forName(name, true, play.Play.application().classloader());
-            //return super.getClassForName(name);
-        } catch (ClassNotFoundException e) {
-            exceptionToThrow = e;
+        Class<?> clazz = findClass(classLoader, name);
+        if (clazz != null) {
+            return clazz;
         }
-        try {
-            return Class.forName("java.lang." + name, true, play.Play.application().classloader());
-            //return super.getClassForName("java.lang." + name);
-        } catch (ClassNotFoundException ignored) {
+        clazz = findClass(classLoader, "java.lang." + name);
+        if (clazz != null) {
+            return clazz;
         }
-        throw exceptionToThrow;
+        throw new ClassNotFoundException(name);
+    }
+
+    /**
+     * Resolve a class by its full name, caching hits and misses.
+     *
+     * @param classLoader class loader to use
+     * @param name        full class name
+     * @return the class or null if it does not exist
+     */
+    private Class<?> findClass(ClassLoader classLoader, String name) {
+        Class<?> clazz = classCache.get(name);
+        if (clazz == null) {
+            try {
+                clazz = Class.forName(name, true, classLoader);
+            } catch (ClassNotFoundException ignored) {
+                clazz = Missing.class;
+            }
+            classCache.put(name, clazz);
+        }
+        return clazz != Missing.class ? clazz : null;
     }
 
     @Override
@@ -136,15 +156,29 @@ public final class CoreFixy extends CompactConstructor implements Fixy {
         Queue<Object> processQueue = new LinkedList<>(entityCache.values());
         while (!processQueue.isEmpty()) {
             Object entity = processQueue.remove();
+            for (Processor postProcessor : postProcessorsFor(entity.getClass())) {
+                postProcessor.processQueue = processQueue;
+                postProcessor.process(entity);
+            }
+            persister.persist(entity);
+        }
+        if (persister instanceof JPAPersister) {
+            ((JPAPersister) persister).flush();
+        }
+    }
+
+    private List<Processor<?>> postProcessorsFor(Class<?> entityClass) {
+        List<Processor<?>> processors = postProcessorsByClass.get(entityClass);
+        if (processors == null) {
+            processors = Lists.newArrayList();
             for (Map.Entry<Class<?>, Processor<?>> entry : postProcessors.entries()) {
-                if (entity.getClass().isAssignableFrom(entry.getKey())) {
-                    Processor postProcessor = entry.getValue();
-                    postProcessor.processQueue = processQueue;
-                    postProcessor.process(entity);
+                if (entityClass.isAssignableFrom(entry.getKey())) {
+                    processors.add(entry.getValue());
                 }
             }
-            persister.persist(entity);
+            postProcessorsByClass.put(entityClass, processors);
         }
+        return processors;
     }
 
     @Override
@@ -156,9 +190,16 @@ public final class CoreFixy extends CompactConstructor implements Fixy {
     @Override
     public <T> void addProcessor(Processor<T> postProcessor) {
         postProcessors.put(postProcessor.getType(), postProcessor);
+        postProcessorsByClass.clear();
     }
 
     void setPackage(String packageName) {
         this.packageName = packageName;
     }
+
+    /**
+     * Marker for names that could not be resolved to a class.
+     */
+    private static final class Missing {
+    }
 }
@@ -7,6 +7,8 @@ class JPAPersister implements Persister {
 
     private final EntityManager entityManager;
     private boolean mergeEntities;
+    private int batchSize;
+    private int unflushed;
 
     public JPAPersister(EntityManager entityManager) {
         this.entityManager = entityManager;
@@ -17,6 +19,19 @@ class JPAPersister implements Persister {
         this.mergeEntities = mergeEntities;
     }
 
+    /**
+     * Creates a persister that flushes every batchSize entities, so inserts are sent as JDBC batches.
+     *
+     * @param entityManager the JPA EntityManager to use
+     * @param mergeEntities true to merge instead of persist entities
+     * @param batchSize     number of entities per flush (0 to flush on commit only)
+     */
+    public JPAPersister(EntityManager entityManager, boolean mergeEntities, int batchSize) {
+        this.entityManager = entityManager;
+        this.mergeEntities = mergeEntities;
+        this.batchSize = batchSize;
+    }
+
     public void persist(Object entity) {
         if (entity.getClass().isAnnotationPresent(Entity.class)) {
             if (mergeEntities) {
@@ -25,6 +40,20 @@ class JPAPersister implements Persister {
                 entityManager.persist(entity);
             }
 
+            if (batchSize > 0 && ++unflushed >= batchSize) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Flushes entities persisted since the last flush if a batch size is set. Called by {@link CoreFixy} after all
+     * entities of a load have been persisted.
+     */
+    public void flush() {
+        if (batchSize > 0 && unflushed > 0) {
+            entityManager.flush();
+            unflushed = 0;
         }
     }
 
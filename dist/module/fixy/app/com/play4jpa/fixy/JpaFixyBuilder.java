@@ -4,6 +4,7 @@ import org.yaml.snakeyaml.introspector.BeanAccess;
 
 import javax.persistence.EntityManager;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -13,6 +14,7 @@ public class JpaFixyBuilder {
 
     private EntityManager entityManager;
     private boolean mergeEntities;
+    private int batchSize;
     private String defaultPackage;
     private BeanAccess beanAccess = BeanAccess.DEFAULT;
 
@@ -47,6 +49,19 @@ public class JpaFixyBuilder {
         return this;
     }
 
+    /**
+     * <p>Flushes the EntityManager every batchSize entities.</p>
+     * <p>Together with <i>hibernate.jdbc.batch_size</i>, this sends the inserts of large fixtures as JDBC batches.</p>
+     *
+     * @param batchSize number of entities per flush
+     * @return the JpaFixyBuilder for further configuration
+     */
+    public JpaFixyBuilder withBatchSize(int batchSize) {
+        checkArgument(batchSize > 0, "batchSize must be > 0");
+        this.batchSize = batchSize;
+        return this;
+    }
+
     /**
      * Enables field access for entities. This allows immutable fields inside entities.
      *
@@ -64,7 +79,7 @@ public class JpaFixyBuilder {
      */
     public Fixy build() {
         return new CoreFixy(
-                new JPAPersister(entityManager, mergeEntities),
+                new JPAPersister(entityManager, mergeEntities, batchSize),
                 defaultPackage,
                 beanAccess);
     }
@@ -14,6 +14,14 @@ object ApplicationBuild extends Build {
     "org.hibernate" % "hibernate-entitymanager" % "4.2.7.Final"
   )
 
+  val jmhVersion = "1.11.3"
+
+  val benchDependencies = appDependencies ++ Seq(
+    component("play-test"),
+    "org.openjdk.jmh" % "jmh-core" % jmhVersion,
+    "org.openjdk.jmh" % "jmh-generator-annprocess" % jmhVersion
+  )
+
   lazy val fixy = play.Project(
     appName + "-fixy",
     appVersion,
@@ -26,4 +34,16 @@ object ApplicationBuild extends Build {
 
     ).dependsOn(fixy).aggregate(fixy)
 
+  // JMH benchmarks, not aggregated: run with "play4jpa-bench/run" (see module/bench/README.md)
+  lazy val bench = play.Project(
+    appName + "-bench",
+    appVersion,
+    benchDependencies,
+    path = file("module/bench")
+  ).settings(
+    mainClass in (Compile, run) := Some("org.openjdk.jmh.Main"),
+    // JMH forks benchmark JVMs with the class path of the running JVM
+    fork in run := true
+  ).dependsOn(main % "compile->test")
+
 }
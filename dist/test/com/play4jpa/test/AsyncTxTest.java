@@ -0,0 +1,214 @@
+package com.play4jpa.test;
+
+import com.play4jpa.jpa.db.Db;
+import com.play4jpa.jpa.db.JdbcExecutor;
+import com.play4jpa.test.models.Task;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Test;
+import play.Configuration;
+import play.Play;
+import play.db.jpa.JPA;
+import play.libs.F;
+
+import javax.persistence.EntityManager;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for asynchronous transactions and queries.
+ *
+ * @author agent
+ */
+public class AsyncTxTest extends TestBase {
+
+    @Test
+    public void findListAsyncTest() {
+        Boolean managed = Db.withTxPromise("default", false, new F.Function0<F.Promise<Boolean>>() {
+            @Override
+            public F.Promise<Boolean> apply() throws Throwable {
+                final EntityManager em = JPA.em();
+                return Task.find.query().findListAsync().map(new F.Function<List<Task>, Boolean>() {
+                    @Override
+                    public Boolean apply(List<Task> tasks) throws Throwable {
+                        assertEquals(NUM_DEFAULT_TASKS, tasks.size());
+                        // Entities are loaded by the entity manager of the promised transaction
+                        return em.contains(tasks.get(0));
+                    }
+                }, Db.txExecutionContext());
+            }
+        }).get(5, TimeUnit.SECONDS);
+
+        assertTrue(managed);
+    }
+
+    @Test
+    public void findUniqueAsyncTest() {
+        Task task = Db.withTxPromise("default", true, new F.Function0<F.Promise<Task>>() {
+            @Override
+            public F.Promise<Task> apply() throws Throwable {
+                return Task.find.query().eq("name", "Task 1").findUniqueAsync();
+            }
+        }).get(5, TimeUnit.SECONDS);
+
+        assertNotNull(task);
+        assertEquals("Task 1", task.name);
+    }
+
+    @Test
+    public void findRowCountAsyncTest() {
+        long count = Db.withTxPromise("default", true, new F.Function0<F.Promise<Long>>() {
+            @Override
+            public F.Promise<Long> apply() throws Throwable {
+                return Task.find.query().eq("done", false).findRowCountAsync();
+            }
+        }).get(5, TimeUnit.SECONDS);
+
+        assertEquals(NUM_DEFAULT_TASKS - 2, count);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void findListAsyncWithoutTxTest() {
+        // The transaction of the test is not kept open for the executing thread
+        Task.find.query().findListAsync();
+    }
+
+    @Test
+    public void findListAsyncInWithTxTest() throws Throwable {
+        Db.withTx(new F.Callback0() {
+            @Override
+            public void invoke() throws Throwable {
+                try {
+                    // Would be closed by Db.withTx before the query runs
+                    Task.find.query().findListAsync();
+                    fail("Asynchronous query outside of Db.withTxPromise");
+                } catch (IllegalStateException e) {
+                    // Expected
+                }
+            }
+        });
+        JPA.bindForCurrentThread(em);
+    }
+
+    @Test
+    public void withTxAsyncTest() {
+        String threadName = Db.withTxAsync(new F.Function0<String>() {
+            @Override
+            public String apply() throws Throwable {
+                assertTrue(JPA.em().getTransaction().isActive());
+                return Thread.currentThread().getName();
+            }
+        }).get(5, TimeUnit.SECONDS);
+
+        assertTrue(threadName.startsWith("play4jpa-jdbc-"));
+        assertNotEquals(Thread.currentThread().getName(), threadName);
+    }
+
+    @Test
+    public void withTxPromiseTest() {
+        final EntityManager[] ems = new EntityManager[2];
+        Boolean open = Db.withTxPromise("default", false, new F.Function0<F.Promise<Boolean>>() {
+            @Override
+            public F.Promise<Boolean> apply() throws Throwable {
+                ems[0] = JPA.em();
+                return F.Promise.pure(1).map(new F.Function<Integer, Boolean>() {
+                    @Override
+                    public Boolean apply(Integer value) throws Throwable {
+                        // Same transaction, still open on another callback
+                        ems[1] = JPA.em();
+                        return JPA.em().getTransaction().isActive();
+                    }
+                }, Db.txExecutionContext());
+            }
+        }).get(5, TimeUnit.SECONDS);
+
+        assertTrue(open);
+        assertSame(ems[0], ems[1]);
+        assertFalse(ems[0].isOpen());
+    }
+
+    @Test
+    public void withTxPromiseFailureTest() {
+        final EntityManager[] em = new EntityManager[1];
+        F.Promise<Integer> promise = Db.withTxPromise("default", false, new F.Function0<F.Promise<Integer>>() {
+            @Override
+            public F.Promise<Integer> apply() throws Throwable {
+                em[0] = JPA.em();
+                return F.Promise.throwing(new IllegalStateException("failed"));
+            }
+        });
+
+        try {
+            promise.get(5, TimeUnit.SECONDS);
+            fail("Failure of block not propagated");
+        } catch (IllegalStateException e) {
+            assertEquals("failed", e.getMessage());
+        }
+        assertFalse(em[0].isOpen());
+    }
+
+    @Test
+    public void boundedQueueTest() {
+        JdbcExecutor executor = new JdbcExecutor(1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocking = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        try {
+            // One task runs, one waits in the queue
+            executor.getExecutionContext().execute(blocking);
+            executor.getExecutionContext().execute(blocking);
+            try {
+                executor.getExecutionContext().execute(blocking);
+                fail("Task accepted by full queue");
+            } catch (RejectedExecutionException e) {
+                // Expected
+            }
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void configuredQueueSizeTest() {
+        Map<String, Object> config = new HashMap<>();
+        assertEquals(JdbcExecutor.DEFAULT_QUEUE_SIZE,
+                JdbcExecutor.getConfiguredQueueSize(new Configuration(ConfigFactory.parseMap(config))));
+
+        config.put(JdbcExecutor.QUEUE_SIZE_KEY, 50);
+        assertEquals(50, JdbcExecutor.getConfiguredQueueSize(new Configuration(ConfigFactory.parseMap(config))));
+    }
+
+    @Test
+    public void executorSizeTest() {
+        int threads = JdbcExecutor.getConfiguredThreads(Play.application().configuration());
+        assertEquals(threads, JdbcExecutor.getInstance().getThreads());
+    }
+
+    @Test
+    public void configuredThreadsTest() {
+        Map<String, Object> config = new HashMap<>();
+        assertEquals(30, JdbcExecutor.getConfiguredThreads(new Configuration(ConfigFactory.parseMap(config))));
+
+        config.put("db.default.partitionCount", 2);
+        config.put("db.default.maxConnectionsPerPartition", 5);
+        assertEquals(10, JdbcExecutor.getConfiguredThreads(new Configuration(ConfigFactory.parseMap(config))));
+
+        config.put(JdbcExecutor.THREADS_KEY, 4);
+        assertEquals(4, JdbcExecutor.getConfiguredThreads(new Configuration(ConfigFactory.parseMap(config))));
+    }
+}
@@ -6,6 +6,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class DefaultQueryTest {
 
@@ -57,4 +58,12 @@ public class DefaultQueryTest {
         alias = query.alialize("creator.name.test");
         assertEquals("creator_name_" + query.getAliasIndex() + ".test", alias);
     }
+
+    @Test
+    public void aliasIndexRangeTest() {
+        for (int i = 0; i < 20000; i++) {
+            int aliasIndex = new DefaultQuery(Task.class).getAliasIndex();
+            assertTrue(aliasIndex >= 1 && aliasIndex <= 9999);
+        }
+    }
 }
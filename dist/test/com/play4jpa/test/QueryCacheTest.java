@@ -0,0 +1,259 @@
+package com.play4jpa.test;
+
+import com.play4jpa.jpa.db.Db;
+import com.play4jpa.jpa.models.DefaultQuery;
+import com.play4jpa.jpa.query.Query;
+import com.play4jpa.jpa.query.QueryCache;
+import com.play4jpa.jpa.query.QueryProxy;
+import com.play4jpa.test.models.Task;
+import com.play4jpa.test.models.User;
+import org.hibernate.Criteria;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.ejb.HibernateEntityManager;
+import org.hibernate.stat.Statistics;
+import org.junit.Test;
+import play.db.jpa.JPA;
+import play.libs.F;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for {@link com.play4jpa.jpa.query.QueryCache} and cacheable queries.
+ *
+ * @author agent
+ */
+public class QueryCacheTest extends TestBase {
+
+    @Test
+    public void findListHitTest() {
+        QueryCache cache = QueryCache.getInstance();
+        cache.resetStatistics();
+
+        List<Task> tasks = Task.find.query().le("priority", 3).orderByAsc("priority").setCacheable(true).findList();
+        assertEquals(1, cache.getMisses());
+        assertEquals(0, cache.getHits());
+
+        List<Task> cachedTasks = Task.find.query().le("priority", 3).orderByAsc("priority").setCacheable(true).findList();
+        assertEquals(1, cache.getHits());
+        assertEquals(tasks, cachedTasks);
+
+        Task.find.query().le("priority", 2).orderByAsc("priority").setCacheable(true).findList();
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void hitStatementsTest() {
+        Statistics statistics = em.unwrap(HibernateEntityManager.class).getSession().getSessionFactory()
+                .getStatistics();
+        statistics.setStatisticsEnabled(true);
+        try {
+            List<Task> tasks = Task.find.query().eq("done", false).setCacheable(true).findList();
+            Task task = Task.find.query().eq("name", "Task 1").setCacheable(true).findUnique();
+            assertFalse(tasks.isEmpty());
+            assertNotNull(task);
+
+            // Cached results are detached snapshots, hits do not access the database
+            assertFalse(em.contains(tasks.get(0)));
+            assertFalse(em.contains(task));
+            statistics.clear();
+            assertEquals(tasks, Task.find.query().eq("done", false).setCacheable(true).findList());
+            assertSame(task, Task.find.query().eq("name", "Task 1").setCacheable(true).findUnique());
+            assertEquals(0, statistics.getPrepareStatementCount());
+        } finally {
+            statistics.setStatisticsEnabled(false);
+        }
+    }
+
+    @Test
+    public void findRowCountInvalidationTest() {
+        assertEquals(NUM_DEFAULT_TASKS, Task.find.query().setCacheable(true).findRowCount());
+
+        Task t = new Task();
+        t.name = "New Task";
+        t.save();
+
+        assertEquals(NUM_DEFAULT_TASKS + 1, Task.find.query().setCacheable(true).findRowCount());
+    }
+
+    @Test
+    public void invalidateAfterCommitTest() throws Throwable {
+        final QueryCache cache = QueryCache.getInstance();
+        assertEquals(NUM_DEFAULT_TASKS, Task.find.query().setCacheable(true).findRowCount());
+        assertEquals(1, cache.size());
+
+        Db.withTx(new F.Callback0() {
+            @Override
+            public void invoke() throws Throwable {
+                Task t = new Task();
+                t.name = "New Task";
+                t.save();
+                Db.em().flush();
+
+                // Other transactions still use the entry, this one bypasses it
+                assertEquals(1, cache.size());
+                assertEquals(NUM_DEFAULT_TASKS + 1, Task.find.query().setCacheable(true).findRowCount());
+                assertEquals(1, cache.size());
+            }
+        });
+        JPA.bindForCurrentThread(em);
+
+        assertEquals(0, cache.size());
+        assertEquals(NUM_DEFAULT_TASKS + 1, Task.find.query().setCacheable(true).findRowCount());
+    }
+
+    @Test
+    public void invalidateAfterOtherCommitTest() {
+        QueryCache cache = QueryCache.getInstance();
+        assertEquals(NUM_DEFAULT_TASKS, Task.find.query().setCacheable(true).findRowCount());
+        assertEquals(1, cache.size());
+
+        // Transaction of the test, not started by Db.withTx
+        Task t = new Task();
+        t.name = "New Task";
+        t.save();
+        assertEquals(1, cache.size());
+        assertEquals(NUM_DEFAULT_TASKS + 1, Task.find.query().setCacheable(true).findRowCount());
+
+        tx.commit();
+        assertEquals(0, cache.size());
+        tx.begin();
+        assertEquals(NUM_DEFAULT_TASKS + 1, Task.find.query().setCacheable(true).findRowCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void rollbackTest() {
+        QueryCache cache = QueryCache.getInstance();
+        assertEquals(NUM_DEFAULT_TASKS, Task.find.query().setCacheable(true).findRowCount());
+
+        Task t = new Task();
+        t.name = "New Task";
+        t.save();
+        tx.rollback();
+
+        // Nothing was written, the entry stays valid
+        tx.begin();
+        assertEquals(1, cache.size());
+        assertEquals(NUM_DEFAULT_TASKS, Task.find.query().setCacheable(true).findRowCount());
+    }
+
+    @Test
+    public void joinedInvalidationTest() {
+        Task t = Task.find.query().join("creator").eq("creator.name", "tom").setCacheable(true).findUnique();
+        assertNotNull(t);
+
+        User tom = User.find.query().eq("name", "tom").findUnique();
+        tom.name = "thomas";
+        tom.update();
+        em.flush();
+
+        t = Task.find.query().join("creator").eq("creator.name", "tom").setCacheable(true).findUnique();
+        assertNull(t);
+    }
+
+    @Test
+    public void junctionTest() {
+        QueryCache cache = QueryCache.getInstance();
+        cache.resetStatistics();
+
+        DefaultQuery<Task> query = (DefaultQuery<Task>) Task.find.query()
+                .or(Restrictions.eq("name", "Task 1"), Restrictions.eq("name", "Task 2")).setCacheable(true);
+        DefaultQuery<Task> otherQuery = (DefaultQuery<Task>) Task.find.query()
+                .or(Restrictions.eq("name", "Task 1"), Restrictions.eq("name", "Task 3")).setCacheable(true);
+
+        // Values are not part of the shape, but of the cache key
+        assertEquals(query.getShape(), otherQuery.getShape());
+        assertEquals(2, query.findList().size());
+        assertEquals(2, otherQuery.findList().size());
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void largeInTest() {
+        QueryCache cache = QueryCache.getInstance();
+        cache.resetStatistics();
+
+        List<Integer> priorities = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            priorities.add(i);
+        }
+        assertEquals(NUM_DEFAULT_TASKS, Task.find.query().in("priority", priorities).setCacheable(true).findList().size());
+        assertEquals(NUM_DEFAULT_TASKS, Task.find.query().in("priority", priorities).setCacheable(true).findList().size());
+        assertEquals(1, cache.getHits());
+
+        priorities.set(999, 1000);
+        Task.find.query().in("priority", priorities).setCacheable(true).findList();
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void criteriaExposedTest() {
+        QueryCache cache = QueryCache.getInstance();
+        cache.resetStatistics();
+
+        Query<Task> query = Task.find.query().setCacheable(true);
+        query.getCriteria();
+        query.findList();
+        query.findList();
+        assertEquals(0, cache.getMisses());
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void preExecuteProxyTest() {
+        QueryProxy<Task> proxy = new QueryProxy<Task>() {
+            @Override
+            public void prepareQuery(Query<Task> query) {
+            }
+
+            @Override
+            public void preExecute(Criteria executableCriteria) {
+                executableCriteria.add(Restrictions.eq("done", false));
+            }
+        };
+
+        new DefaultQuery<>(Task.class, proxy).setCacheable(true);
+    }
+
+    @Test
+    public void applicationLifecycleTest() {
+        QueryCache cache = QueryCache.getInstance();
+        Task.find.query().setCacheable(true).findRowCount();
+        assertEquals(1, cache.size());
+
+        // The cache is discarded with its application
+        after();
+        assertEquals(0, cache.size());
+        try {
+            QueryCache.getInstance();
+            fail("QueryCache of a stopped application must not be available");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        before();
+        assertNotSame(cache, QueryCache.getInstance());
+        assertEquals(0, QueryCache.getInstance().size());
+    }
+
+    @Test
+    public void evictionTest() {
+        QueryCache cache = new QueryCache(2, 1, TimeUnit.MINUTES);
+        cache.put("a", 1L, Collections.<Class<?>>singleton(Task.class), cache.getGeneration());
+        cache.put("b", 2L, Collections.<Class<?>>singleton(User.class), cache.getGeneration());
+        cache.put("c", 3L, Collections.<Class<?>>singleton(User.class), cache.getGeneration());
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get("a"));
+
+        cache.invalidate(User.class);
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.getInvalidations());
+    }
+}
@@ -0,0 +1,195 @@
+package com.play4jpa.test;
+
+import com.play4jpa.jpa.db.Db;
+import com.play4jpa.jpa.models.DefaultQuery;
+import com.play4jpa.jpa.query.QueryListener;
+import com.play4jpa.jpa.query.QueryMetrics;
+import com.play4jpa.test.models.Task;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.libs.F;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for {@link com.play4jpa.jpa.query.QueryMetrics}.
+ *
+ * @author agent
+ */
+public class QueryMetricsTest extends TestBase {
+
+    private QueryMetrics metrics;
+
+    private RecordingListener listener;
+
+    @Before
+    public void enableMetrics() {
+        metrics = QueryMetrics.getInstance();
+        metrics.setEnabled(true);
+        metrics.reset();
+        metrics.setSlowQueryThreshold(QueryMetrics.DEFAULT_SLOW_QUERY_MILLIS, TimeUnit.MILLISECONDS);
+        metrics.setRepeatThreshold(QueryMetrics.DEFAULT_REPEAT_THRESHOLD);
+        listener = new RecordingListener();
+        metrics.addListener(listener);
+    }
+
+    @After
+    public void disableMetrics() {
+        metrics.removeListener(listener);
+        metrics.setEnabled(false);
+    }
+
+    @Test
+    public void disabledTest() {
+        metrics.setEnabled(false);
+        Task.find.query().findList();
+        assertEquals(0, metrics.getQueryCount());
+        assertNull(metrics.getStatistics(Task.class));
+    }
+
+    @Test
+    public void entityStatisticsTest() {
+        Task.find.query().findList();
+        Task.find.query().eq("name", "Task 1").findUnique();
+
+        assertEquals(2, metrics.getQueryCount());
+        QueryMetrics.Statistics statistics = metrics.getStatistics(Task.class);
+        assertEquals(2, statistics.getMicros().getCount());
+        assertEquals(NUM_DEFAULT_TASKS, statistics.getRows().getMax());
+        assertEquals(1, metrics.getEntityStatistics().length);
+        assertEquals(2, listener.queries.size());
+    }
+
+    @Test
+    public void shapeStatisticsTest() {
+        DefaultQuery<Task> query = (DefaultQuery<Task>) Task.find.query().eq("done", false);
+        query.findList();
+        Task.find.query().eq("done", true).findList();
+        Task.find.query().findRowCount();
+
+        QueryMetrics.Statistics statistics = metrics.getStatistics(Task.class, "list", query.getShape());
+        assertNotNull(statistics);
+        assertEquals(2, statistics.getMicros().getCount());
+        assertEquals(NUM_DEFAULT_TASKS - 2, statistics.getRows().getMax());
+        assertEquals(2, metrics.getShapeStatistics().length);
+    }
+
+    @Test
+    public void slowQueryTest() {
+        metrics.setSlowQueryThreshold(0, TimeUnit.MILLISECONDS);
+        Task.find.query().eq("name", "Task 1").findList();
+
+        assertEquals(1, metrics.getSlowQueryCount());
+        String[] slowQueries = metrics.getSlowQueries();
+        assertEquals(1, slowQueries.length);
+        assertTrue(slowQueries[0].contains(Task.class.getName()));
+        assertTrue(slowQueries[0].contains("name"));
+        assertEquals(1, listener.slowQueries.size());
+    }
+
+    @Test
+    public void repeatedQueryTest() throws Throwable {
+        Db.withTx("default", true, new F.Function0<Void>() {
+            @Override
+            public Void apply() throws Throwable {
+                for (int i = 0; i < QueryMetrics.DEFAULT_REPEAT_THRESHOLD + 5; i++) {
+                    Task.find.query().eq("priority", i).findList();
+                }
+                return null;
+            }
+        });
+
+        // Reported once per transaction and shape
+        assertEquals(1, metrics.getRepeatedQueryCount());
+        assertEquals(1, listener.repeatedQueries.size());
+
+        // Executions in another transaction are counted separately
+        Db.withTx("default", true, new F.Function0<Void>() {
+            @Override
+            public Void apply() throws Throwable {
+                Task.find.query().eq("priority", 1).findList();
+                return null;
+            }
+        });
+        assertEquals(1, metrics.getRepeatedQueryCount());
+    }
+
+    @Test
+    public void transactionTest() throws Throwable {
+        Db.withTx(new F.Callback0() {
+            @Override
+            public void invoke() throws Throwable {
+                Db.setCommitNeeded();
+            }
+        });
+        Db.withTx(new F.Callback0() {
+            @Override
+            public void invoke() throws Throwable {
+                Task.find.query().findList();
+            }
+        });
+        Db.withTx("default", true, new F.Function0<Void>() {
+            @Override
+            public Void apply() throws Throwable {
+                return null;
+            }
+        });
+
+        assertEquals(1, metrics.getCommitCount());
+        assertEquals(1, metrics.getRollbackCount());
+        assertEquals(1, metrics.getReadOnlyCount());
+        assertEquals(3, metrics.getTransactionMicros().getCount());
+        assertEquals(3, listener.transactions.size());
+    }
+
+    @Test
+    public void histogramTest() {
+        QueryMetrics.Histogram histogram = new QueryMetrics.Histogram();
+        assertEquals(0, histogram.getPercentile(50));
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(100, histogram.getMax());
+        assertEquals(50.5, histogram.getMean(), 0.001);
+        assertEquals(63, histogram.getPercentile(50));
+        assertEquals(100, histogram.getPercentile(99));
+    }
+
+    private static class RecordingListener implements QueryListener {
+
+        private final List<String> queries = new ArrayList<>();
+
+        private final List<String> slowQueries = new ArrayList<>();
+
+        private final List<String> repeatedQueries = new ArrayList<>();
+
+        private final List<QueryMetrics.TxOutcome> transactions = new ArrayList<>();
+
+        @Override
+        public void queryExecuted(Class<?> entityClass, String terminal, String shape, long durationNanos, int rows) {
+            queries.add(shape);
+        }
+
+        @Override
+        public void slowQuery(Class<?> entityClass, String terminal, String criteria, long durationNanos) {
+            slowQueries.add(criteria);
+        }
+
+        @Override
+        public void repeatedQuery(Class<?> entityClass, String terminal, String shape, int executions) {
+            repeatedQueries.add(shape);
+        }
+
+        @Override
+        public void transactionCompleted(String persistenceUnit, QueryMetrics.TxOutcome outcome, long durationNanos) {
+            transactions.add(outcome);
+        }
+    }
+}
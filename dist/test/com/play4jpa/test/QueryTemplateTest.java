@@ -0,0 +1,145 @@
+package com.play4jpa.test;
+
+import com.google.common.collect.Lists;
+import com.play4jpa.jpa.query.Query;
+import com.play4jpa.jpa.query.QueryMetrics;
+import com.play4jpa.jpa.query.QueryTemplate;
+import com.play4jpa.test.models.Task;
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.play4jpa.jpa.query.QueryTemplate.param;
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for {@link com.play4jpa.jpa.query.QueryTemplate}
+ *
+ * @author agent
+ */
+public class QueryTemplateTest extends TestBase {
+
+    private static final QueryTemplate<Task> byCreatorName = Task.find.template(new QueryTemplate.Definition<Task>() {
+        @Override
+        public void define(QueryTemplate.Builder<Task> query) {
+            query.join("creator").eq("creator.name", param("name"));
+        }
+    });
+
+    private static final QueryTemplate<Task> byPriority = Task.find.template(new QueryTemplate.Definition<Task>() {
+        @Override
+        public void define(QueryTemplate.Builder<Task> query) {
+            query.isNotNull("done").between("priority", param("lo"), param("hi")).orderByDesc("priority");
+        }
+    });
+
+    @Test
+    public void compileTest() {
+        assertEquals("select e from com.play4jpa.test.models.Task e join e.creator creator_ where creator_.name = :name",
+                byCreatorName.getHql());
+        assertEquals(Lists.newArrayList("lo", "hi"), Lists.newArrayList(byPriority.getParameterNames()));
+    }
+
+    @Test
+    public void findUniqueTest() {
+        Task t = byCreatorName.bind("name", "tom").findUnique();
+        assertNotNull(t);
+        assertEquals("Task 3", t.name);
+
+        t = byCreatorName.bind("name", "max").findUnique();
+        assertNotNull(t);
+        assertEquals("Task 2", t.name);
+
+        assertNull(byCreatorName.bind("name", "nobody").findUnique());
+    }
+
+    @Test
+    public void findListTest() {
+        List<Task> tasks = byPriority.bind("lo", 2).bind("hi", 3).findList();
+        assertEquals(3, tasks.size());
+
+        int lastPriority = Integer.MAX_VALUE;
+        for (Task t : tasks) {
+            assertTrue(2 <= t.priority && t.priority <= 3);
+            assertTrue(lastPriority >= t.priority);
+            lastPriority = t.priority;
+        }
+
+        assertEquals(3, byPriority.bind("lo", 2).bind("hi", 3).findRowCount());
+        assertEquals(1, byPriority.bind("lo", 2).bind("hi", 3).findPage(2, 2).size());
+    }
+
+    @Test
+    public void fixedValuesTest() {
+        QueryTemplate<Task> template = Task.find.template(new QueryTemplate.Definition<Task>() {
+            @Override
+            public void define(QueryTemplate.Builder<Task> query) {
+                query.in("name", Lists.newArrayList("Task 1", "Task 2")).eq("done", param("done"));
+            }
+        });
+
+        Task t = template.bind("done", false).findUnique();
+        assertNotNull(t);
+        assertEquals("Task 1", t.name);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unboundParameterTest() {
+        byPriority.bind("lo", 2).findList();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownParameterTest() {
+        byCreatorName.bind("unknown", 2);
+    }
+
+    @Test
+    public void metricsTest() {
+        QueryMetrics metrics = QueryMetrics.getInstance();
+        metrics.setEnabled(true);
+        metrics.reset();
+        try {
+            byPriority.bind("lo", 2).bind("hi", 3).findList();
+            byPriority.bind("lo", 1).bind("hi", 6).findRowCount();
+
+            assertEquals(2, metrics.getQueryCount());
+            QueryMetrics.Statistics statistics = metrics.getStatistics(Task.class, "list", byPriority.getHql());
+            assertNotNull(statistics);
+            assertEquals(3, statistics.getRows().getMax());
+            assertNotNull(metrics.getStatistics(Task.class, "rowCount", byPriority.getHql()));
+        } finally {
+            metrics.setEnabled(false);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void queryHookTest() {
+        new QueryTemplate<>(HookedTask.class, new QueryTemplate.Definition<HookedTask>() {
+            @Override
+            public void define(QueryTemplate.Builder<HookedTask> query) {
+                query.eq("name", param("name"));
+            }
+        });
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unjoinedFieldTest() {
+        Task.find.template(new QueryTemplate.Definition<Task>() {
+            @Override
+            public void define(QueryTemplate.Builder<Task> query) {
+                query.eq("creator.name", param("name"));
+            }
+        });
+    }
+
+    /**
+     * Task restricting its queries, which templates cannot apply.
+     */
+    public static class HookedTask extends Task {
+
+        @Override
+        public void prepareQuery(Query<Task> query) {
+            query.eq("done", false);
+        }
+    }
+}
@@ -1,14 +1,34 @@
 package com.play4jpa.test;
 
 import com.google.common.collect.Lists;
+import com.play4jpa.jpa.models.DefaultQuery;
+import com.play4jpa.jpa.query.ChunkedInStrategy;
+import com.play4jpa.jpa.query.InStrategy;
+import com.play4jpa.jpa.query.PagedQueryIterator;
 import com.play4jpa.jpa.query.Query;
+import com.play4jpa.jpa.query.QueryMetrics;
+import com.play4jpa.jpa.query.QueryProxy;
+import com.play4jpa.jpa.query.TempTableInStrategy;
+import com.play4jpa.jpa.query.ThresholdInStrategy;
 import com.play4jpa.test.models.Task;
 import com.play4jpa.test.models.User;
+import org.hibernate.Criteria;
+import org.hibernate.Hibernate;
 import org.hibernate.NonUniqueResultException;
+import org.hibernate.ejb.HibernateEntityManager;
+import org.hibernate.stat.Statistics;
 import org.junit.Test;
 import play.Logger;
+import play.db.jpa.JPA;
 
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.junit.Assert.*;
 
@@ -243,6 +263,101 @@ public class QueryTest extends TestBase {
         }
     }
 
+    @Test
+    public void inLargeTest() {
+        List<String> options = Lists.newArrayList("Task 1", "Task 2");
+        for (int i = 0; i < 1200; i++) {
+            options.add("Unknown " + i);
+        }
+
+        List<Task> tasks = Task.find.query().in("name", options).findList();
+        assertEquals(2, tasks.size());
+
+        for (Task t : tasks) {
+            assertTrue(options.contains(t.name));
+        }
+    }
+
+    @Test
+    public void notInLargeTest() {
+        List<String> options = Lists.newArrayList("Task 1", "Task 2");
+        for (int i = 0; i < 1200; i++) {
+            options.add("Unknown " + i);
+        }
+
+        List<Task> tasks = Task.find.query().notIn("name", options).findList();
+        assertEquals(NUM_DEFAULT_TASKS - 2, tasks.size());
+
+        for (Task t : tasks) {
+            assertFalse(options.contains(t.name));
+        }
+    }
+
+    @Test
+    public void inTempTableTest() {
+        List<String> options = Lists.newArrayList("Task 1", "Task 2");
+        for (int i = 0; i < 1200; i++) {
+            options.add("Unknown " + i);
+        }
+
+        List<Task> tasks = Task.find.query().setInStrategy(new TempTableInStrategy()).in("name", options).findList();
+        assertEquals(2, tasks.size());
+
+        tasks = Task.find.query().setInStrategy(new TempTableInStrategy()).notIn("name", options).findList();
+        assertEquals(NUM_DEFAULT_TASKS - 2, tasks.size());
+    }
+
+    @Test
+    public void inTempTableExecutionTest() {
+        List<String> options = Lists.newArrayList("Task 1", "Task 2");
+        for (int i = 0; i < 1200; i++) {
+            options.add("Unknown " + i);
+        }
+
+        Query<Task> query = Task.find.query().setInStrategy(new TempTableInStrategy()).in("name", options);
+        assertEquals(2, query.findList().size());
+
+        // Values are inserted for each execution and deleted afterwards
+        assertEquals(0, countRows("play4jpa_in_varchar"));
+        assertEquals(2, query.findRowCount());
+        assertEquals(0, countRows("play4jpa_in_varchar"));
+
+        // Building a query does not insert anything, the table is shared by all restrictions
+        Query<Task> other = Task.find.query().setInStrategy(new TempTableInStrategy()).notIn("name", options);
+        assertEquals(0, countRows("play4jpa_in_varchar"));
+        assertEquals(NUM_DEFAULT_TASKS - 2, other.findRowCount());
+    }
+
+    private static long countRows(String table) {
+        return ((Number) JPA.em().createNativeQuery("select count(*) from " + table).getSingleResult()).longValue();
+    }
+
+    @Test
+    public void inThresholdTest() {
+        InStrategy strategy = new ThresholdInStrategy(10, new ChunkedInStrategy(), new TempTableInStrategy());
+        List<Task> tasks = Task.find.query().setInStrategy(strategy).in("name", Lists.newArrayList("Task 1")).findList();
+        assertEquals(1, tasks.size());
+
+        List<String> options = Lists.newArrayList("Task 1", "Task 2");
+        for (int i = 0; i < 20; i++) {
+            options.add("Unknown " + i);
+        }
+        tasks = Task.find.query().setInStrategy(strategy).in("name", options).findList();
+        assertEquals(2, tasks.size());
+    }
+
+    @Test
+    public void inBucketSizeTest() {
+        ChunkedInStrategy strategy = new ChunkedInStrategy(500);
+        assertEquals(1, strategy.bucketSize(1));
+        assertEquals(2, strategy.bucketSize(2));
+        assertEquals(4, strategy.bucketSize(3));
+        assertEquals(64, strategy.bucketSize(33));
+        assertEquals(256, strategy.bucketSize(256));
+        assertEquals(500, strategy.bucketSize(257));
+        assertEquals(500, strategy.bucketSize(500));
+    }
+
     @Test
     public void notInQueryTest() {
         Query<User> userQuery = User.find.query().eq("name", "jens");
@@ -316,4 +431,484 @@ public class QueryTest extends TestBase {
         int age = User.find.query().findMaxValue("age");
         assertEquals(30, age);
     }
+
+    @Test
+    public void findPagedIteratorTest() {
+        PagedQueryIterator<Task> iterator = Task.find.query().orderByAsc("id").findPagedIterator(2);
+        Set<Long> ids = new HashSet<>();
+        while (iterator.hasNext()) {
+            assertTrue(ids.add(iterator.next().id));
+        }
+        assertEquals(NUM_DEFAULT_TASKS, ids.size());
+        assertEquals(3, iterator.getPageNo());
+    }
+
+    @Test
+    public void findSeekIteratorTest() {
+        PagedQueryIterator<Task> iterator = Task.find.query().findSeekIterator(2);
+        assertEquals("id", iterator.getSeekField());
+
+        long lastId = Long.MIN_VALUE;
+        int count = 0;
+        while (iterator.hasNext()) {
+            Task t = iterator.next();
+            assertTrue(lastId < t.id);
+            lastId = t.id;
+            count++;
+        }
+        assertEquals(NUM_DEFAULT_TASKS, count);
+    }
+
+    @Test
+    public void findSeekIteratorWithRestrictionTest() {
+        PagedQueryIterator<Task> iterator = Task.find.query().le("priority", 3).findSeekIterator("name", 3);
+
+        String lastName = "";
+        int count = 0;
+        while (iterator.hasNext()) {
+            Task t = iterator.next();
+            assertTrue(t.priority <= 3);
+            assertTrue(lastName.compareTo(t.name) < 0);
+            lastName = t.name;
+            count++;
+        }
+        assertEquals(4, count);
+    }
+
+    @Test
+    public void findSeekIteratorDetachTest() {
+        PagedQueryIterator<Task> iterator = Task.find.query().findSeekIterator(2).setDetachPages(true);
+        assertTrue(iterator.hasNext());
+        Task first = iterator.next();
+        assertTrue(em.contains(first));
+
+        while (iterator.hasNext()) {
+            iterator.next();
+        }
+        assertFalse(em.contains(first));
+    }
+
+    @Test
+    public void findSeekIteratorClearTest() {
+        PagedQueryIterator<Task> iterator = Task.find.query().findSeekIterator(2).setClearPages(true);
+        assertTrue(iterator.hasNext());
+        Task first = iterator.next();
+        assertNotNull(first.creator);
+        assertTrue(em.contains(first.creator));
+
+        while (iterator.hasNext()) {
+            iterator.next();
+        }
+        // Eagerly fetched associations are gone as well
+        assertFalse(em.contains(first));
+        assertFalse(em.contains(first.creator));
+    }
+
+    @Test
+    public void findPageAfterKeepsQueryTest() {
+        Query<Task> query = Task.find.query().eq("done", false);
+        List<Task> page = query.findPageAfter("id", null, 2);
+        assertEquals(2, page.size());
+
+        List<Task> nextPage = query.findPageAfter("id", page.get(1), 2);
+        assertEquals(1, nextPage.size());
+        assertTrue(nextPage.get(0).id > page.get(1).id);
+
+        // Neither the seek restriction nor the order remain on the query
+        assertEquals(NUM_DEFAULT_TASKS - 2, query.findRowCount());
+        assertEquals(NUM_DEFAULT_TASKS - 2, query.findList().size());
+    }
+
+    @Test
+    public void findSeekIteratorTiesTest() {
+        // Priority 3 occurs twice, the second one must not be skipped at the page boundary
+        PagedQueryIterator<Task> iterator = Task.find.query().findSeekIterator("priority", 2);
+
+        List<String> names = new ArrayList<>();
+        while (iterator.hasNext()) {
+            names.add(iterator.next().name);
+        }
+        assertEquals(Arrays.asList("jens", "Task 4", "Task 1", "Task 3", "Task 2"), names);
+    }
+
+    @Test
+    public void findSeekIteratorOrderedTest() {
+        PagedQueryIterator<Task> iterator = Task.find.query().orderByDesc("priority").findSeekIterator(2);
+
+        List<String> names = new ArrayList<>();
+        while (iterator.hasNext()) {
+            names.add(iterator.next().name);
+        }
+        assertEquals(Arrays.asList("Task 2", "Task 1", "Task 3", "Task 4", "jens"), names);
+    }
+
+    @Test
+    public void findSeekIteratorJoinedOrderTest() {
+        PagedQueryIterator<Task> iterator = Task.find.query().join("creator").orderByAsc("creator.name")
+                .findSeekIterator(1);
+
+        List<String> names = new ArrayList<>();
+        while (iterator.hasNext()) {
+            names.add(iterator.next().creator.name);
+        }
+        assertEquals(4, names.size());
+        List<String> sorted = new ArrayList<>(names);
+        Collections.sort(sorted);
+        assertEquals(sorted, names);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void findPageAfterNullValueTest() {
+        // Task 2 is neither done nor undone, rows after it cannot be told apart
+        Task task2 = Task.find.query().eq("name", "Task 2").findUnique();
+        Task.find.query().findPageAfter("done", task2, 2);
+    }
+
+    @Test
+    public void deleteTest() {
+        int deleted = Task.find.query().lt("priority", 3).delete();
+        assertEquals(2, deleted);
+        assertEquals(NUM_DEFAULT_TASKS - 2, Task.find.count());
+        assertEquals(0, Task.find.query().lt("priority", 3).findRowCount());
+    }
+
+    @Test
+    public void deleteWithJoinTableTest() {
+        assertEquals(3, Task.find.query().join("assignees").findRowCount());
+
+        int deleted = Task.find.query().eq("name", "Task 1").delete();
+        assertEquals(1, deleted);
+        assertEquals(NUM_DEFAULT_TASKS - 1, Task.find.count());
+        assertEquals(1, Task.find.query().join("assignees").findRowCount());
+    }
+
+    @Test
+    public void updateTest() {
+        int updated = Task.find.query().join("creator").eq("creator.name", "tom").update("done", true);
+        assertEquals(1, updated);
+
+        Task t = Task.find.query().eq("name", "Task 3").findUnique();
+        assertTrue(t.done);
+        assertEquals(2, Task.find.query().eq("done", true).findRowCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void deleteOrderedTest() {
+        Task.find.query().orderByAsc("priority").delete();
+    }
+
+    @Test
+    public void selectTest() {
+        List<Object[]> rows = Task.find.query().eq("name", "Task 1").select("name", "priority");
+        assertEquals(1, rows.size());
+        assertArrayEquals(new Object[]{"Task 1", 3}, rows.get(0));
+
+        rows = Task.find.query().orderByAsc("name").select("name");
+        assertEquals(NUM_DEFAULT_TASKS, rows.size());
+        assertEquals("Task 1", rows.get(0)[0]);
+    }
+
+    @Test
+    public void selectJoinedTest() {
+        // creator is left-joined, so Task 4 without creator is selected as well
+        List<Object[]> rows = Task.find.query().orderByAsc("name").select("name", "creator.name");
+        assertEquals(NUM_DEFAULT_TASKS, rows.size());
+        assertArrayEquals(new Object[]{"Task 1", "jens"}, rows.get(0));
+        assertArrayEquals(new Object[]{"Task 4", null}, rows.get(3));
+    }
+
+    @Test
+    public void selectKeepsQueryTest() {
+        DefaultQuery<Task> query = (DefaultQuery<Task>) Task.find.query().eq("done", false);
+        String shape = query.getShape();
+
+        // The left join on creator is only used by the projection
+        assertEquals(NUM_DEFAULT_TASKS - 2, query.select("name", "creator.name").size());
+        assertEquals(shape, query.getShape());
+        assertEquals(NUM_DEFAULT_TASKS - 2, query.findRowCount());
+
+        // The same path can be joined afterwards
+        query.join("creator").eq("creator.name", "tom");
+        assertEquals(1, query.findList().size());
+    }
+
+    @Test
+    public void selectMapsTest() {
+        List<Map<String, Object>> rows = Task.find.query().join("creator").eq("creator.name", "tom")
+                .selectMaps("name", "creator.email");
+        assertEquals(1, rows.size());
+        assertEquals("Task 3", rows.get(0).get("name"));
+        assertEquals("tom@mail.xxx", rows.get(0).get("creator.email"));
+    }
+
+    @Test
+    public void selectDtoTest() {
+        List<TaskSummary> summaries = Task.find.query().lt("priority", 3).orderByAsc("priority")
+                .select(TaskSummary.class, "name", "priority");
+        assertEquals(2, summaries.size());
+        assertEquals("jens", summaries.get(0).name);
+        assertEquals(1, summaries.get(0).priority);
+        assertEquals("Task 4", summaries.get(1).name);
+
+        List<TaskSummary> withDone = Task.find.query().orderByAsc("name").select(TaskSummary.class, "name", "done");
+        assertEquals(NUM_DEFAULT_TASKS, withDone.size());
+        assertEquals(Boolean.FALSE, withDone.get(0).done);
+        // The constructor is chosen by the types of the fields, not by the values
+        assertNull(withDone.get(1).done);
+    }
+
+    @Test
+    public void selectDtoMostSpecificTest() {
+        List<NamedValue> values = Task.find.query().eq("name", "Task 1").select(NamedValue.class, "name", "priority");
+        assertEquals(1, values.size());
+        assertEquals("Number", values.get(0).constructor);
+
+        values = Task.find.query().eq("name", "Task 1").select(NamedValue.class, "name", "creator.name");
+        assertEquals("Object", values.get(0).constructor);
+        assertEquals("jens", values.get(0).value);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void selectDtoAmbiguousTest() {
+        Task.find.query().select(AmbiguousSummary.class, "name", "priority");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void selectDtoNullPrimitiveTest() {
+        Task t = new Task();
+        t.name = "Without priority";
+        t.save();
+        Task.find.query().eq("name", "Without priority").select(TaskSummary.class, "name", "priority");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void selectDtoWithoutConstructorTest() {
+        Task.find.query().select(TaskSummary.class, "name");
+    }
+
+    @Test
+    public void distinctIdsPageTest() {
+        // Task 1 has two assignees, so the first two joined rows both belong to it
+        List<Task> tasks = Task.find.query().join("assignees").orderByAsc("name").findPage(1, 2);
+        assertEquals(1, tasks.size());
+
+        tasks = Task.find.query().join("assignees").orderByAsc("name").setDistinctIds(true).findPage(1, 2);
+        assertEquals(2, tasks.size());
+        assertEquals("Task 1", tasks.get(0).name);
+        assertEquals("Task 2", tasks.get(1).name);
+    }
+
+    @Test
+    public void distinctIdsCountTest() {
+        assertEquals(3, Task.find.query().join("assignees").findRowCount());
+        assertEquals(2, Task.find.query().join("assignees").setDistinctIds(true).findRowCount());
+    }
+
+    @Test
+    public void distinctIdsUniqueTest() {
+        Task t = Task.find.query().join("assignees").eq("name", "Task 1").setDistinctIds(true).findUnique();
+        assertNotNull(t);
+        assertEquals("Task 1", t.name);
+    }
+
+    @Test(expected = NonUniqueResultException.class)
+    public void distinctIdsUniqueFailTest() {
+        Task.find.query().join("assignees").setDistinctIds(true).findUnique();
+    }
+
+    @Test
+    public void lazyWithoutFetchTest() {
+        JPA.em().clear();
+        Task t = Task.find.query().eq("name", "Task 1").findUnique();
+        assertFalse(Hibernate.isInitialized(t.assignees));
+    }
+
+    @Test
+    public void fetchBatchListTest() {
+        JPA.em().clear();
+        List<Task> tasks = Task.find.query().orderByAsc("name").fetchBatch("assignees", 2).findList();
+        assertEquals(NUM_DEFAULT_TASKS, tasks.size());
+
+        for (Task t : tasks) {
+            assertTrue(Hibernate.isInitialized(t.assignees));
+        }
+        assertEquals(2, tasks.get(0).assignees.size());
+        assertEquals(1, tasks.get(1).assignees.size());
+        assertTrue(tasks.get(2).assignees.isEmpty());
+    }
+
+    @Test
+    public void fetchPageTest() {
+        JPA.em().clear();
+        List<Task> tasks = Task.find.query().orderByAsc("name").fetch("assignees").findPage(2, 2);
+        assertEquals(2, tasks.size());
+        assertEquals("Task 3", tasks.get(0).name);
+
+        for (Task t : tasks) {
+            assertTrue(Hibernate.isInitialized(t.assignees));
+        }
+    }
+
+    @Test
+    public void fetchUniqueTest() {
+        JPA.em().clear();
+        Task t = Task.find.query().eq("name", "Task 1").fetch("assignees").findUnique();
+        assertTrue(Hibernate.isInitialized(t.assignees));
+        assertEquals(2, t.assignees.size());
+    }
+
+    @Test
+    public void fetchPagedIteratorTest() {
+        JPA.em().clear();
+        PagedQueryIterator<Task> iterator = Task.find.query().orderByAsc("name").fetch("assignees").findPagedIterator(2);
+        int count = 0;
+        while (iterator.hasNext()) {
+            assertTrue(Hibernate.isInitialized(iterator.next().assignees));
+            count++;
+        }
+        assertEquals(NUM_DEFAULT_TASKS, count);
+    }
+
+    @Test
+    public void fetchToOneTest() {
+        // Tasks without (eagerly joined) creator, so the lazy reviewers are not loaded by the query anyway
+        List<User> users = User.find.all();
+        for (User user : users) {
+            Task task = new Task();
+            task.name = "Review " + user.name;
+            task.reviewer = user;
+            task.save();
+        }
+        JPA.em().flush();
+
+        Statistics statistics = JPA.em().unwrap(HibernateEntityManager.class).getSession().getSessionFactory()
+                .getStatistics();
+        statistics.setStatisticsEnabled(true);
+        try {
+            // One select per reviewer without fetch
+            JPA.em().clear();
+            statistics.clear();
+            for (Task t : Task.find.query().isNotNull("reviewer").findList()) {
+                Hibernate.initialize(t.reviewer);
+            }
+            assertEquals(1 + users.size(), statistics.getPrepareStatementCount());
+
+            // Reviewers joined with fetch
+            JPA.em().clear();
+            statistics.clear();
+            List<Task> tasks = Task.find.query().isNotNull("reviewer").fetch("reviewer").findList();
+            assertEquals(users.size(), tasks.size());
+            for (Task t : tasks) {
+                assertTrue(Hibernate.isInitialized(t.reviewer));
+            }
+            assertEquals(1, statistics.getPrepareStatementCount());
+        } finally {
+            statistics.setStatisticsEnabled(false);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fetchNoAssociationTest() {
+        Task.find.query().fetch("name").findList();
+    }
+
+    @Test
+    public void fetchWithoutEntityManagerTest() {
+        // Fetch plans are resolved on execution, so queries can be built before an entity manager is bound
+        EntityManager em = JPA.em();
+        Query<Task> query;
+        JPA.bindForCurrentThread(null);
+        try {
+            query = Task.find.query().fetch("reviewer").fetchBatch("assignees", 2);
+        } finally {
+            JPA.bindForCurrentThread(em);
+        }
+
+        assertEquals(NUM_DEFAULT_TASKS, query.findList().size());
+    }
+
+    @Test
+    public void fetchBatchMetricsTest() {
+        QueryMetrics metrics = QueryMetrics.getInstance();
+        metrics.setEnabled(true);
+        metrics.reset();
+        try {
+            Task.find.query().fetchBatch("assignees", 2).findList();
+            // Main statement and three batches
+            assertEquals(1 + 3, metrics.getQueryCount());
+        } finally {
+            metrics.setEnabled(false);
+        }
+    }
+
+    @Test
+    public void fetchInPrepareQueryTest() {
+        JPA.em().clear();
+        QueryProxy<Task> proxy = new QueryProxy<Task>() {
+            @Override
+            public void prepareQuery(Query<Task> query) {
+                query.fetch("assignees");
+            }
+
+            @Override
+            public void preExecute(Criteria executableCriteria) {
+            }
+        };
+
+        // Like Finder.query(), the creator of the query calls prepareQuery
+        DefaultQuery<Task> query = new DefaultQuery<>(Task.class, proxy);
+        proxy.prepareQuery(query);
+        List<Task> tasks = query.findList();
+        assertEquals(NUM_DEFAULT_TASKS, tasks.size());
+        for (Task t : tasks) {
+            assertTrue(Hibernate.isInitialized(t.assignees));
+        }
+    }
+
+    public static class TaskSummary {
+
+        private final String name;
+
+        private final int priority;
+
+        private final Boolean done;
+
+        public TaskSummary(String name, int priority) {
+            this.name = name;
+            this.priority = priority;
+            this.done = null;
+        }
+
+        public TaskSummary(String name, Boolean done) {
+            this.name = name;
+            this.priority = 0;
+            this.done = done;
+        }
+    }
+
+    public static class NamedValue {
+
+        private final Object value;
+
+        private final String constructor;
+
+        public NamedValue(String name, Object value) {
+            this.value = value;
+            this.constructor = "Object";
+        }
+
+        public NamedValue(String name, Number value) {
+            this.value = value;
+            this.constructor = "Number";
+        }
+    }
+
+    public static class AmbiguousSummary {
+
+        public AmbiguousSummary(String name, Number priority) {
+        }
+
+        public AmbiguousSummary(CharSequence name, Integer priority) {
+        }
+    }
 }
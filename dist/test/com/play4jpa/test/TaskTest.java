@@ -3,6 +3,9 @@ package com.play4jpa.test;
 import com.play4jpa.test.models.Task;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static org.junit.Assert.*;
 
 /**
@@ -85,4 +88,90 @@ public class TaskTest extends TestBase {
         assertEquals("New Task", t.name);
         assertTrue(t.done);
     }
+
+    @Test
+    public void saveAllTest() {
+        List<Task> tasks = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            Task t = new Task();
+            t.name = "Bulk Task " + i;
+            t.done = false;
+            tasks.add(t);
+        }
+
+        Task.find.saveAll(tasks, 3, true);
+
+        for (Task t : tasks) {
+            assertNotNull(t.id);
+            assertFalse(em.contains(t));
+        }
+        assertEquals(NUM_DEFAULT_TASKS + 7, Task.find.count());
+    }
+
+    @Test
+    public void updateAllTest() {
+        List<Task> tasks = Task.find.query().eq("done", false).findList();
+        for (Task t : tasks) {
+            t.done = true;
+        }
+
+        Task.find.updateAll(tasks, 2, false);
+
+        assertEquals(4, Task.find.query().eq("done", true).findRowCount());
+        // Not detached without asking for it
+        for (Task t : tasks) {
+            assertTrue(em.contains(t));
+        }
+    }
+
+    @Test
+    public void updateAllDefaultDetachTest() {
+        List<Task> tasks = Task.find.query().eq("done", false).findList();
+        for (Task t : tasks) {
+            t.done = true;
+        }
+
+        Task.find.updateAll(tasks);
+
+        assertEquals(4, Task.find.query().eq("done", true).findRowCount());
+        // Bulk writes detach by default
+        for (Task t : tasks) {
+            assertFalse(em.contains(t));
+        }
+    }
+
+    @Test
+    public void saveAllDefaultDetachTest() {
+        List<Task> tasks = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Task t = new Task();
+            t.name = "Bulk Task " + i;
+            tasks.add(t);
+        }
+
+        Task.find.saveAll(tasks);
+
+        for (Task t : tasks) {
+            assertNotNull(t.id);
+            assertFalse(em.contains(t));
+        }
+        assertEquals(NUM_DEFAULT_TASKS + 3, Task.find.count());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void updateAllNewTaskTest() {
+        List<Task> tasks = new ArrayList<>();
+        tasks.add(new Task());
+        Task.find.updateAll(tasks);
+    }
+
+    @Test
+    public void deleteAllTest() {
+        List<Task> tasks = Task.find.query().lt("priority", 3).findList();
+        assertEquals(2, tasks.size());
+
+        Task.find.deleteAll(tasks, 1);
+
+        assertEquals(NUM_DEFAULT_TASKS - 2, Task.find.count());
+    }
 }
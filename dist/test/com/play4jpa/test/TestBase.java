@@ -3,7 +3,9 @@ package com.play4jpa.test;
 import com.google.common.collect.Lists;
 import com.play4jpa.jpa.test.ModelTest;
 import org.junit.After;
+import org.junit.AfterClass;
 import org.junit.Before;
+import play.Logger;
 import play.test.FakeApplication;
 import play.test.Helpers;
 
@@ -25,6 +27,16 @@ public abstract class TestBase extends ModelTest {
         return fixtures;
     }
 
+    @Override
+    public boolean useFixtureSnapshots() {
+        return true;
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        Logger.info(fixtureTimingReport());
+    }
+
     @Before
     @Override
     public void before() {
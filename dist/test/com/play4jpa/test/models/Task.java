@@ -22,6 +22,9 @@ public class Task extends Model<Task> {
     @ManyToOne
     public User creator;
 
+    @ManyToOne(fetch = FetchType.LAZY)
+    public User reviewer;
+
     @ManyToMany
     public Set<User> assignees;
 